@@ -11,6 +11,8 @@ import java.util.HashMap;
 
 public class AlphaQAsm {
 
+	private static final boolean RECORD_PHASES = Boolean.getBoolean("alphaq.jfr");
+
 	private HashMap<String, Integer> symbolTable;
 	private short[] program;
 
@@ -18,7 +20,13 @@ public class AlphaQAsm {
 		CodeException e1 = null;
 		try (Tokenizer tokenizer = new Tokenizer(file)) {
 			Parser parser = new Parser(tokenizer, Instructions.AQ2);
-			parser.parse();
+
+			if (RECORD_PHASES) {
+				assembleRecorded(file, tokenizer, parser);
+			} else {
+				parser.parse();
+				parser.link();
+			}
 
 			symbolTable = parser.getSymbolTable();
 			program = parser.getProgram();
@@ -31,6 +39,36 @@ public class AlphaQAsm {
 			throw e1;
 	}
 
+	private static void assembleRecorded(File file, Tokenizer tokenizer, Parser parser) throws IOException, CodeException {
+		AssemblerPhase parse = new AssemblerPhase();
+		tokenizer.setTimed(parse.isEnabled());
+		parse.begin();
+		parser.parse();
+		parse.end();
+
+		if (parse.shouldCommit()) {
+			parse.phase = "parse";
+			parse.file = file.getPath();
+			parse.tokens = tokenizer.tokenCount();
+			parse.lines = tokenizer.lineNumber();
+			parse.tokenizeTime = tokenizer.tokenizeNanos();
+			parse.commit();
+		}
+
+		AssemblerPhase link = new AssemblerPhase();
+		link.begin();
+		parser.link();
+		link.end();
+
+		if (link.shouldCommit()) {
+			link.phase = "link";
+			link.file = file.getPath();
+			link.words = parser.getWordCount();
+			link.symbols = parser.getSymbolTable().size();
+			link.commit();
+		}
+	}
+
 	public HashMap<String, Integer> getSymbolTable() {
 		return symbolTable;
 	}
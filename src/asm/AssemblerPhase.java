@@ -0,0 +1,38 @@
+package asm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("alphaq.AssemblerPhase")
+@Label("Assembler Phase")
+@Category({"AlphaQ", "Assembler"})
+@Enabled(false)
+@StackTrace(false)
+class AssemblerPhase extends Event {
+	@Label("Phase")
+	String phase;
+
+	@Label("File")
+	String file;
+
+	@Label("Tokens")
+	int tokens;
+
+	@Label("Lines")
+	int lines;
+
+	@Label("Tokenize Time")
+	@Timespan
+	long tokenizeTime;
+
+	@Label("Words")
+	int words;
+
+	@Label("Symbols")
+	int symbols;
+}
@@ -37,6 +37,10 @@ public class Parser {
 		return dest;
 	}
 
+	public int getWordCount() {
+		return wordCount;
+	}
+
 	public static class Variable {
 		public String name;
 		public int offset;
@@ -225,7 +229,9 @@ public class Parser {
 				return;
 			}
 		}
+	}
 
+	public void link() throws CodeException {
 		reservedDefinitions.remove("__codeEnd");
 		reservedDefinitions.remove("__dataStart");
 
@@ -24,6 +24,9 @@ public class Tokenizer implements Closeable {
 	private String currentLine = "\n";
 	private int lineNumber = 0;
 	private boolean blockComment = false;
+	private boolean timed = false;
+	private long tokenizeNanos = 0;
+	private int tokenCount = 0;
 
 	static {
 		keywords.add("a");
@@ -67,6 +70,19 @@ public class Tokenizer implements Closeable {
 	}
 
 	public Tokenizer advance() throws EOFException, CodeException {
+		if (!timed)
+			return readToken();
+
+		long start = System.nanoTime();
+		try {
+			return readToken();
+		} finally {
+			tokenizeNanos += System.nanoTime() - start;
+			tokenCount++;
+		}
+	}
+
+	private Tokenizer readToken() throws EOFException, CodeException {
 		while (hasMoreTokens()) {
 			if (!blockComment) {
 				tokenType = 0;
@@ -270,6 +286,18 @@ public class Tokenizer implements Closeable {
 		return lineNumber;
 	}
 
+	public void setTimed(boolean timed) {
+		this.timed = timed;
+	}
+
+	public long tokenizeNanos() {
+		return tokenizeNanos;
+	}
+
+	public int tokenCount() {
+		return tokenCount;
+	}
+
 	private boolean closed = false;
 
 	@Override
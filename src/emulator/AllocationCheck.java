@@ -0,0 +1,114 @@
+package emulator;
+
+import com.sun.management.ThreadMXBean;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+public class AllocationCheck {
+
+	private static final long SLICE_CYCLES = 1000000;
+	private static final double MAX_BYTES_PER_INSTRUCTION = 0.001;
+
+	private static void usage() {
+		System.err.println("Usage: AllocationCheck [image] [-instructions n] [-warmup n]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) {
+		File image = new File("Chess.aq");
+		long instructions = 50000000;
+		long warmup = 20000000;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (!args[i].startsWith("-")) {
+					image = new File(args[i]);
+				} else if (i + 1 >= args.length) {
+					usage();
+				} else if (args[i].equals("-instructions")) {
+					instructions = Long.parseLong(args[++i]);
+				} else if (args[i].equals("-warmup")) {
+					warmup = Long.parseLong(args[++i]);
+				} else {
+					usage();
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Expected number");
+			System.exit(2);
+		}
+
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			System.err.println("Thread allocation accounting is not supported by this JVM");
+			System.exit(2);
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		Emulator emulator = new Emulator();
+		try {
+			ImageLoader.loadImage(image, emulator);
+		} catch (IOException e) {
+			System.err.println("Failed to read file: " + e.getMessage());
+			System.exit(2);
+		}
+		emulator.input = () -> 'a';
+
+		Snapshot start = emulator.snapshot();
+		Emulator reference = emulator.fork();
+		boolean passed = true;
+
+		for (boolean stepped : new boolean[] {false, true}) {
+			measure(threads, emulator, start, reference, stepped, warmup);
+			double bytes = measure(threads, emulator, start, reference, stepped, instructions);
+
+			String mode = stepped ? "executeInstruction" : "run";
+			System.out.printf("%-20s %.6f bytes/instruction\n", mode, bytes);
+
+			if (bytes > MAX_BYTES_PER_INSTRUCTION) {
+				System.err.printf("%s allocates %.6f bytes per instruction, expected at most %.6f\n", mode, bytes, MAX_BYTES_PER_INSTRUCTION);
+				passed = false;
+			}
+		}
+
+		System.exit(passed ? 0 : 1);
+	}
+
+	private static void restart(Emulator emulator, Snapshot start, Emulator reference) {
+		start.restoreRegistersTo(emulator);
+
+		for (int address = emulator.findMemoryDifference(reference); address >= 0; address = emulator.findMemoryDifference(reference))
+			emulator.store(address, reference.load(address));
+	}
+
+	private static double measure(ThreadMXBean threads, Emulator emulator, Snapshot start, Emulator reference, boolean stepped, long instructions) {
+		long thread = Thread.currentThread().getId();
+		long allocated = 0;
+		long retired = 0;
+
+		while (retired < instructions) {
+			if (emulator.error)
+				restart(emulator, start, reference);
+
+			long before = emulator.instructionsRetired;
+			long bytes = threads.getThreadAllocatedBytes(thread);
+
+			if (stepped) {
+				for (long cycles = emulator.cycleCount + SLICE_CYCLES; emulator.cycleCount < cycles && !emulator.error; )
+					emulator.executeInstruction();
+			} else {
+				emulator.run(SLICE_CYCLES, 0);
+			}
+
+			allocated += threads.getThreadAllocatedBytes(thread) - bytes;
+			retired += emulator.instructionsRetired - before;
+
+			if (emulator.instructionsRetired == before)
+				restart(emulator, start, reference);
+		}
+
+		return (double) allocated / retired;
+	}
+}
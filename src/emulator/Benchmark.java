@@ -0,0 +1,407 @@
+package emulator;
+
+import asm.AlphaQAsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+public class Benchmark {
+
+	private static final String[] IMAGES = {"Chess.aq", "divide.aq", "div10.aq", "po2divide.aq", "exmul.aq", "Multiply3.aq"};
+	private static final byte[] INPUT = "e2e4\ne7e5\ng1f3\nb8c6\n".getBytes();
+	private static final int INSTRUCTIONS_PER_INVOCATION = 1000000;
+	private static final int[] BREAKPOINT_COUNTS = {0, 1, 4, 16};
+
+	private static long sink = 0;
+
+	private interface Case {
+		long invoke() throws Exception;
+	}
+
+	private static class Definition {
+		final String name;
+		final String unit;
+		final Case body;
+
+		Definition(String name, String unit, Case body) {
+			this.name = name;
+			this.unit = unit;
+			this.body = body;
+		}
+	}
+
+	private static class Score {
+		final double mean;
+		final double error;
+
+		Score(double mean, double error) {
+			this.mean = mean;
+			this.error = error;
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: Benchmark [-dir directory] [-warmup n] [-iterations n] [-time ms] [-forks n] [-filter regex] [-asm file] [-out file] [-baseline file]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) {
+		File directory = new File(".");
+		int warmup = 3;
+		int iterations = 5;
+		long iterationTime = 1000;
+		int forks = 0;
+		Pattern filter = null;
+		File assembly = null;
+		File output = null;
+		File baseline = null;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (i + 1 >= args.length) {
+					usage();
+				} else if (args[i].equals("-dir")) {
+					directory = new File(args[++i]);
+				} else if (args[i].equals("-warmup")) {
+					warmup = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-iterations")) {
+					iterations = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-time")) {
+					iterationTime = Long.parseLong(args[++i]);
+				} else if (args[i].equals("-forks")) {
+					forks = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-filter")) {
+					filter = Pattern.compile(args[++i]);
+				} else if (args[i].equals("-asm")) {
+					assembly = new File(args[++i]);
+				} else if (args[i].equals("-out")) {
+					output = new File(args[++i]);
+				} else if (args[i].equals("-baseline")) {
+					baseline = new File(args[++i]);
+				} else {
+					usage();
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Expected number");
+			System.exit(2);
+		}
+
+		List<Definition> definitions;
+		HashMap<String, Score> baselineScores = null;
+
+		try {
+			definitions = define(directory, assembly);
+
+			if (baseline != null)
+				baselineScores = readResults(baseline);
+		} catch (IOException e) {
+			System.err.println("Failed to read file: " + e.getMessage());
+			System.exit(2);
+			return;
+		}
+
+		ArrayList<String> results = new ArrayList<>();
+		results.add(String.format("# java %s, %s %s, warmup %d, iterations %d x %d ms, forks %d", System.getProperty("java.version"),
+				System.getProperty("os.name"), System.getProperty("os.arch"), warmup, iterations, iterationTime, forks));
+
+		ArrayList<String> options = new ArrayList<>(List.of("-dir", directory.getPath(), "-warmup", String.valueOf(warmup),
+				"-iterations", String.valueOf(iterations), "-time", String.valueOf(iterationTime)));
+		if (assembly != null)
+			options.addAll(List.of("-asm", assembly.getPath()));
+		results.add("benchmark\tscore\terror\tunit");
+
+		for (Definition definition : definitions) {
+			if (filter != null && !filter.matcher(definition.name).find())
+				continue;
+
+			Score score;
+			try {
+				score = forks > 0 ? fork(definition, forks, options) : measure(definition, warmup, iterations, iterationTime);
+			} catch (Exception e) {
+				System.err.println("Benchmark " + definition.name + " failed");
+				e.printStackTrace();
+				continue;
+			}
+
+			String line = String.format(Locale.ROOT, "%s\t%.3f\t%.3f\t%s", definition.name, score.mean, score.error, definition.unit);
+			results.add(line);
+
+			System.out.printf("%-32s %16.3f +- %12.3f %s", definition.name, score.mean, score.error, definition.unit);
+
+			Score previous = baselineScores == null ? null : baselineScores.get(definition.name);
+			if (previous != null)
+				System.out.printf("  %+7.2f%% vs baseline", (score.mean - previous.mean) * 100 / previous.mean);
+
+			System.out.println();
+		}
+
+		if (forks == 0)
+			System.out.printf("checksum %016x\n", sink);
+
+		if (output != null) {
+			try {
+				Files.write(output.toPath(), results);
+			} catch (IOException e) {
+				System.err.println("Failed to write results: " + e.getMessage());
+				System.exit(2);
+			}
+		}
+	}
+
+	private static List<Definition> define(File directory, File assembly) throws IOException {
+		ArrayList<Definition> definitions = new ArrayList<>();
+
+		for (String name : IMAGES) {
+			File file = new File(directory, name);
+			if (!file.exists())
+				continue;
+
+			Emulator loaded = new Emulator();
+			ImageLoader.loadImage(file, loaded);
+			Snapshot start = loaded.snapshot();
+
+			definitions.add(new Definition("load:" + name, "loads/s", () -> {
+				loaded.setMemory(ImageLoader.loadImage(file));
+				consume(loaded.load(0));
+				return 1;
+			}));
+			definitions.add(new Definition("execute:" + name, "instr/s", stepper(start)));
+			definitions.add(new Definition("run:" + name, "instr/s", runner(start, false, new short[0])));
+			definitions.add(new Definition("jit:" + name, "instr/s", runner(start, true, new short[0])));
+		}
+
+		File chess = new File(directory, "Chess.aq");
+		if (chess.exists()) {
+			Emulator loaded = new Emulator();
+			ImageLoader.loadImage(chess, loaded);
+			Snapshot start = loaded.snapshot();
+
+			for (int count : BREAKPOINT_COUNTS)
+				definitions.add(new Definition("breakpoints:" + count, "instr/s", runner(start, false, missingAddresses(count))));
+
+			for (int count : BREAKPOINT_COUNTS) {
+				if (count > 0)
+					definitions.add(new Definition("breakpoints-hit:" + count, "instr/s", runner(start, false, hotAddresses(start, count))));
+			}
+		}
+
+		File symbols = new File(directory, "Chess.aq.symbols");
+		if (symbols.exists()) {
+			definitions.add(new Definition("symbols:Chess.aq.symbols", "loads/s", () -> {
+				SymbolIndex index = new SymbolIndex();
+				ImageLoader.loadSymbols(symbols, index::add);
+				consume(index.floor(0xFFFF) == null ? 0 : index.floor(0xFFFF).getKey());
+				return 1;
+			}));
+		}
+
+		if (assembly != null) {
+			definitions.add(new Definition("assemble:" + assembly.getName(), "files/s", () -> {
+				consume(new AlphaQAsm(assembly).getProgram().length);
+				return 1;
+			}));
+		}
+
+		return definitions;
+	}
+
+	private static Emulator prepare(Snapshot start) {
+		Emulator emulator = new Emulator();
+		emulator.restore(start);
+
+		int[] position = {0};
+		emulator.input = () -> INPUT[position[0]++ % INPUT.length];
+		return emulator;
+	}
+
+	private static Case stepper(Snapshot start) {
+		Emulator emulator = prepare(start);
+
+		return () -> {
+			for (int i = 0; i < INSTRUCTIONS_PER_INVOCATION; i++) {
+				if (emulator.error)
+					emulator.restore(start);
+
+				emulator.executeInstruction();
+			}
+
+			consume(emulator);
+			return INSTRUCTIONS_PER_INVOCATION;
+		};
+	}
+
+	private static short[] missingAddresses(int count) {
+		short[] addresses = new short[count];
+		for (int i = 0; i < count; i++)
+			addresses[i] = (short) (0xFFFF - i);
+
+		return addresses;
+	}
+
+	private static short[] hotAddresses(Snapshot start, int count) {
+		Emulator emulator = prepare(start);
+		int[] hits = new int[65536];
+
+		for (int i = 0; i < INSTRUCTIONS_PER_INVOCATION; i++) {
+			if (emulator.error)
+				emulator.restore(start);
+
+			hits[Short.toUnsignedInt(emulator.ip)]++;
+			emulator.executeInstruction();
+		}
+
+		ArrayList<Integer> executed = new ArrayList<>();
+		for (int address = 0; address < hits.length; address++) {
+			if (hits[address] > 0)
+				executed.add(address);
+		}
+		executed.sort((first, second) -> Integer.compare(hits[second], hits[first]));
+
+		short[] addresses = new short[Math.min(count, executed.size())];
+		for (int i = 0; i < addresses.length; i++)
+			addresses[i] = (short) (int) executed.get(i);
+
+		return addresses;
+	}
+
+	private static Case runner(Snapshot start, boolean jit, short[] breakpointAddresses) {
+		Emulator emulator = prepare(start);
+
+		if (jit)
+			new BlockJit(emulator);
+
+		int stopMask = 0;
+		if (breakpointAddresses.length > 0) {
+			Breakpoints breakpoints = new Breakpoints(emulator);
+			for (short address : breakpointAddresses)
+				breakpoints.add(new Breakpoint("ip", address));
+
+			stopMask = StopReason.BREAKPOINT.mask;
+		}
+
+		int mask = stopMask;
+		return () -> {
+			long executed = 0;
+
+			while (executed < INSTRUCTIONS_PER_INVOCATION) {
+				long retired = emulator.instructionsRetired;
+				StopReason reason = emulator.run(INSTRUCTIONS_PER_INVOCATION - executed, mask);
+				executed += emulator.instructionsRetired - retired;
+
+				if (reason == StopReason.INVALID_INSTRUCTION)
+					emulator.restore(start);
+			}
+
+			consume(emulator);
+			return executed;
+		};
+	}
+
+	private static void consume(long value) {
+		sink = sink * 31 + value;
+	}
+
+	private static void consume(Emulator emulator) {
+		consume(emulator.a | emulator.b << 16 | (long) emulator.c << 32 | (long) emulator.d << 48);
+		consume(emulator.e | emulator.fp << 16 | (long) emulator.sp << 32 | (long) emulator.ip << 48);
+		consume(emulator.getFlags() ^ emulator.cycleCount);
+	}
+
+	private static Score measure(Definition definition, int warmup, int iterations, long iterationTime) throws Exception {
+		for (int i = 0; i < warmup; i++)
+			iterate(definition.body, iterationTime);
+
+		double[] scores = new double[iterations];
+		for (int i = 0; i < iterations; i++)
+			scores[i] = iterate(definition.body, iterationTime);
+
+		return summarize(scores);
+	}
+
+	private static Score fork(Definition definition, int forks, List<String> options) throws IOException, InterruptedException {
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		File output = File.createTempFile("benchmark", ".tsv");
+		double[] scores = new double[forks];
+
+		try {
+			for (int i = 0; i < forks; i++) {
+				ArrayList<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"), Benchmark.class.getName()));
+				command.addAll(options);
+				command.addAll(List.of("-filter", "^" + Pattern.quote(definition.name) + "$", "-out", output.getPath()));
+
+				Process process = new ProcessBuilder(command)
+						.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+						.redirectError(ProcessBuilder.Redirect.INHERIT)
+						.start();
+
+				int exit = process.waitFor();
+				if (exit != 0)
+					throw new IOException("Fork exited with status " + exit);
+
+				Score score = readResults(output).get(definition.name);
+				if (score == null)
+					throw new IOException("Fork produced no result");
+
+				scores[i] = score.mean;
+			}
+		} finally {
+			output.delete();
+		}
+
+		return summarize(scores);
+	}
+
+	private static Score summarize(double[] scores) {
+		double sum = 0;
+		for (double score : scores)
+			sum += score;
+
+		double mean = sum / scores.length;
+		double variance = 0;
+		for (double score : scores)
+			variance += (score - mean) * (score - mean);
+
+		double deviation = scores.length > 1 ? Math.sqrt(variance / (scores.length - 1)) : 0;
+		return new Score(mean, deviation);
+	}
+
+	private static double iterate(Case body, long iterationTime) throws Exception {
+		long operations = 0;
+		long start = System.nanoTime();
+		long end = start + iterationTime * 1000000;
+		long now;
+
+		do {
+			operations += body.invoke();
+			now = System.nanoTime();
+		} while (now < end);
+
+		return operations * 1e9 / (now - start);
+	}
+
+	private static HashMap<String, Score> readResults(File file) throws IOException {
+		HashMap<String, Score> scores = new HashMap<>();
+
+		for (String line : Files.readAllLines(file.toPath())) {
+			String[] fields = line.split("\t");
+			if (line.startsWith("#") || fields.length < 3 || fields[0].equals("benchmark"))
+				continue;
+
+			try {
+				scores.put(fields[0], new Score(Double.parseDouble(fields[1]), Double.parseDouble(fields[2])));
+			} catch (NumberFormatException e) {
+				System.err.println("Skipping malformed result: " + line);
+			}
+		}
+
+		return scores;
+	}
+}
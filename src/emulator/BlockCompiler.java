@@ -0,0 +1,527 @@
+package emulator;
+
+import java.util.ArrayList;
+
+import static emulator.ClassFileWriter.*;
+
+class BlockCompiler {
+
+	static final int MAX_BLOCK_LENGTH = 64;
+
+	private static final String EMULATOR = "emulator/Emulator";
+	private static final String ALU_DESCRIPTOR = "(SS)S";
+	private static final String[] REGISTERS = {"a", "b", "c", "d", "e", "fp", "sp"};
+
+	private static final int EMULATOR_LOCAL = 1;
+	private static final int REGISTER_LOCALS = 2;
+	private static final int SP_LOCAL = REGISTER_LOCALS + 6;
+	private static final int CYCLES_LOCAL = 9;
+	private static final int NEXT_IP_LOCAL = 10;
+	private static final int TAKEN_LOCAL = 11;
+	private static final int TEMP_LOCAL = 12;
+	private static final int TEMP2_LOCAL = 13;
+	private static final int LOCAL_COUNT = 14;
+	private static final int MAX_STACK = 10;
+
+	private final ArrayList<Instruction> block = new ArrayList<>();
+	private final int start;
+	private int end;
+
+	private ClassFileWriter writer;
+	private Code code;
+	private final ArrayList<CodeWriteExit> codeWriteExits = new ArrayList<>();
+	private int staticCycles;
+
+	BlockCompiler(Emulator emulator, int start) {
+		this.start = start;
+
+		int address = start;
+		while (block.size() < MAX_BLOCK_LENGTH) {
+			Instruction instruction = emulator.instructionAt(address);
+
+			if (instruction.isInvalid() || address + instruction.length() > 0xFFFF)
+				break;
+
+			block.add(instruction);
+			address += instruction.length();
+
+			if (endsBlock(instruction.instruction))
+				break;
+		}
+
+		end = address;
+	}
+
+	static boolean endsBlock(short instruction) {
+		int opcode = Instruction.getOpcode(instruction);
+
+		if (opcode == 0x10 || opcode == 0x23)
+			return true;
+		if (opcode == 0x15 && Instruction.getArg2(instruction) == 7)
+			return true;
+
+		return Instruction.getArg1(instruction) == 7 && writesArg1(opcode);
+	}
+
+	private static boolean writesArg1(int opcode) {
+		switch (opcode) {
+			case 0x02:
+			case 0x03:
+			case 0x04:
+			case 0x05:
+			case 0x0D:
+			case 0x0E:
+			case 0x0F:
+			case 0x10:
+			case 0x14:
+			case 0x1A:
+			case 0x3C:
+				return false;
+		}
+
+		return true;
+	}
+
+	boolean isEmpty() {
+		return block.isEmpty();
+	}
+
+	int getEnd() {
+		return end;
+	}
+
+	byte[] toByteArray() {
+		writer = new ClassFileWriter(String.format("emulator/Block%04x", start), "java/lang/Object", "emulator/CompiledBlock");
+
+		code = writer.method(ACC_PUBLIC, "<init>", "()V", 1, 1);
+		code.aload(0);
+		code.op(INVOKESPECIAL, writer.methodRef("java/lang/Object", "<init>", "()V"));
+		code.op(RETURN);
+
+		code = writer.method(ACC_PUBLIC, "execute", "(L" + EMULATOR + ";)V", MAX_STACK, LOCAL_COUNT);
+
+		for (int i = 0; i < REGISTERS.length; i++) {
+			code.aload(EMULATOR_LOCAL);
+			code.op(GETFIELD, register(i));
+			code.istore(REGISTER_LOCALS + i);
+		}
+
+		code.iconst(0);
+		code.istore(CYCLES_LOCAL);
+		code.aload(EMULATOR_LOCAL);
+		code.iconst(0);
+		code.op(PUTFIELD, writer.fieldRef(EMULATOR, "outputTripped", "Z"));
+
+		for (int i = 0; i < block.size(); i++)
+			compileInstruction(block.get(i), i, i == block.size() - 1);
+
+		for (CodeWriteExit exit : codeWriteExits) {
+			code.mark(exit.label);
+			code.iconst(exit.nextIp);
+			code.istore(NEXT_IP_LOCAL);
+			code.iconst(1);
+			code.istore(TAKEN_LOCAL);
+			compileExit(exit.instruction, exit.cycles, exit.index + 1);
+		}
+
+		return writer.toByteArray();
+	}
+
+	private void compileInstruction(Instruction instruction, int index, boolean last) {
+		int opcode = instruction.getOpcode();
+		int arg1 = instruction.getArg1();
+		int arg2 = instruction.getArg2();
+		int condition = instruction.getCondition();
+		short nextIp = (short) (instruction.address + instruction.length());
+
+		staticCycles += instruction.length();
+
+		if (last) {
+			code.iconst(nextIp);
+			code.istore(NEXT_IP_LOCAL);
+			code.iconst(condition == 0 ? 1 : 0);
+			code.istore(TAKEN_LOCAL);
+		}
+
+		Label skip = new Label();
+		if (condition == 15) {
+			code.iload(REGISTER_LOCALS + 2);
+			code.jump(IFEQ, skip);
+		} else if (condition != 0) {
+			code.aload(EMULATOR_LOCAL);
+			code.iconst(condition);
+			code.op(INVOKEVIRTUAL, writer.methodRef(EMULATOR, "conditionMet", "(I)Z"));
+			code.jump(IFEQ, skip);
+		}
+
+		if (last && condition != 0) {
+			code.iconst(1);
+			code.istore(TAKEN_LOCAL);
+		}
+
+		boolean stores = compileOperation(instruction, opcode, arg1, arg2, nextIp);
+
+		if (stores && !last) {
+			CodeWriteExit exit = new CodeWriteExit(instruction, index, staticCycles, nextIp);
+			codeWriteExits.add(exit);
+
+			code.aload(EMULATOR_LOCAL);
+			code.op(GETFIELD, writer.fieldRef(EMULATOR, "codeWritten", "Z"));
+			code.jump(IFNE, exit.label);
+		}
+
+		code.mark(skip);
+
+		if (last)
+			compileExit(instruction, staticCycles, index + 1);
+	}
+
+	private boolean compileOperation(Instruction instruction, int opcode, int arg1, int arg2, short nextIp) {
+		switch (opcode) {
+			case 0x01:
+				loadArg2(instruction);
+				storeArg1(arg1);
+				return false;
+			case 0x02:
+			case 0x03:
+				code.aload(EMULATOR_LOCAL);
+				code.iload(SP_LOCAL);
+				code.op(I2C);
+				if (opcode == 0x02)
+					loadArg1(arg1, nextIp);
+				else
+					loadArg2(instruction);
+				store();
+				incrementSp(1);
+				extraCycle();
+				return true;
+			case 0x04:
+				code.aload(EMULATOR_LOCAL);
+				loadArg2(instruction);
+				code.op(I2C);
+				loadArg1(arg1, nextIp);
+				store();
+				extraCycle();
+				return true;
+			case 0x05:
+				code.aload(EMULATOR_LOCAL);
+				loadArg1(arg1, nextIp);
+				code.op(I2C);
+				loadArg2(instruction);
+				store();
+				extraCycle();
+				return true;
+			case 0x06:
+				code.aload(EMULATOR_LOCAL);
+				code.iload(SP_LOCAL);
+				code.iconst(1);
+				code.op(ISUB);
+				code.op(I2C);
+				load();
+				storeArg1(arg1);
+				incrementSp(-1);
+				extraCycle();
+				return false;
+			case 0x07:
+				code.aload(EMULATOR_LOCAL);
+				code.iload(SP_LOCAL);
+				code.op(I2C);
+				loadArg1(arg1, nextIp);
+				store();
+				incrementSp(1);
+				loadArg2(instruction);
+				storeArg1(arg1);
+				extraCycle();
+				return true;
+			case 0x08:
+			case 0x09:
+			case 0x0A:
+				code.iload(REGISTER_LOCALS + opcode - 0x04);
+				storeArg1(arg1);
+				return false;
+			case 0x0B:
+				code.iconst(nextIp);
+				storeArg1(arg1);
+				return false;
+			case 0x0C:
+				code.aload(EMULATOR_LOCAL);
+				code.op(INVOKEVIRTUAL, writer.methodRef(EMULATOR, "getFlags", "()S"));
+				storeArg1(arg1);
+				return false;
+			case 0x0D:
+			case 0x0F:
+				code.aload(EMULATOR_LOCAL);
+				code.iload(opcode == 0x0D ? REGISTER_LOCALS + 5 : SP_LOCAL);
+				loadArg2(instruction);
+				code.op(IADD);
+				code.op(I2C);
+				loadArg1(arg1, nextIp);
+				store();
+				extraCycle();
+				return true;
+			case 0x0E:
+				code.aload(EMULATOR_LOCAL);
+				loadArg2(instruction);
+				code.op(INVOKEVIRTUAL, writer.methodRef(EMULATOR, "setFlags", "(S)V"));
+				return false;
+			case 0x10:
+				code.aload(EMULATOR_LOCAL);
+				loadArg2(instruction);
+				code.op(PUTFIELD, writer.fieldRef(EMULATOR, "out", "S"));
+				code.aload(EMULATOR_LOCAL);
+				code.iconst(1);
+				code.op(PUTFIELD, writer.fieldRef(EMULATOR, "outputTripped", "Z"));
+				return false;
+			case 0x12:
+				code.iload(SP_LOCAL);
+				loadArg2(instruction);
+				code.op(IADD);
+				code.op(I2C);
+				code.istore(TEMP_LOCAL);
+				code.aload(EMULATOR_LOCAL);
+				code.iload(TEMP_LOCAL);
+				load();
+				code.istore(TEMP2_LOCAL);
+				code.aload(EMULATOR_LOCAL);
+				code.iload(TEMP_LOCAL);
+				loadArg1(arg1, nextIp);
+				store();
+				code.iload(TEMP2_LOCAL);
+				storeArg1(arg1);
+				extraCycle();
+				return true;
+			case 0x14:
+				code.aload(EMULATOR_LOCAL);
+				loadArg1(arg1, nextIp);
+				loadArg2(instruction);
+				code.op(INVOKEVIRTUAL, writer.methodRef(EMULATOR, "setPattern", "(SS)V"));
+				return false;
+			case 0x15:
+				loadArg1(arg1, nextIp);
+				code.istore(TEMP_LOCAL);
+				loadArg1(arg2, nextIp);
+				code.istore(TEMP2_LOCAL);
+				code.iload(TEMP_LOCAL);
+				storeArg1(arg2);
+				code.iload(TEMP2_LOCAL);
+				storeArg1(arg1);
+				return false;
+			case 0x16:
+				loadArg2(instruction);
+				code.op(I2C);
+				code.op(INVOKESTATIC, writer.methodRef("emulator/QueryDevice", "get", "(I)S"));
+				storeArg1(arg1);
+				return false;
+			case 0x17:
+				code.aload(EMULATOR_LOCAL);
+				code.iload(SP_LOCAL);
+				loadArg2(instruction);
+				code.op(IADD);
+				code.op(I2C);
+				load();
+				storeArg1(arg1);
+				extraCycle();
+				return false;
+			case 0x18:
+				return alu(instruction, "steq", arg1, nextIp, true);
+			case 0x19:
+				return alu(instruction, "and", arg1, nextIp, true);
+			case 0x1A:
+				return alu(instruction, "and", arg1, nextIp, false);
+			case 0x1B:
+				return alu(instruction, "nand", arg1, nextIp, true);
+			case 0x1C:
+				return alu(instruction, "or", arg1, nextIp, true);
+			case 0x1D:
+				return alu(instruction, "nor", arg1, nextIp, true);
+			case 0x1E:
+				return alu(instruction, "xor", arg1, nextIp, true);
+			case 0x1F:
+				return alu(instruction, "xnor", arg1, nextIp, true);
+			case 0x20:
+				return alu(instruction, "rotl", arg1, nextIp, true);
+			case 0x21:
+				return alu(instruction, "rotr", arg1, nextIp, true);
+			case 0x22:
+				loadArg2(instruction);
+				code.op(I2C);
+				code.istore(TEMP_LOCAL);
+				code.aload(EMULATOR_LOCAL);
+				code.iload(TEMP_LOCAL);
+				load();
+				code.istore(TEMP2_LOCAL);
+				code.aload(EMULATOR_LOCAL);
+				code.iload(TEMP_LOCAL);
+				loadArg1(arg1, nextIp);
+				store();
+				code.iload(TEMP2_LOCAL);
+				storeArg1SfZf(arg1);
+				extraCycle();
+				return true;
+			case 0x23:
+				code.aload(EMULATOR_LOCAL);
+				code.op(INVOKEVIRTUAL, writer.methodRef(EMULATOR, "readInput", "()S"));
+				storeArg1SfZf(arg1);
+				return false;
+			case 0x24:
+				return alu(instruction, "stnq", arg1, nextIp, true);
+			case 0x25:
+			case 0x26:
+				code.aload(EMULATOR_LOCAL);
+				code.iload(opcode == 0x25 ? REGISTER_LOCALS + 5 : SP_LOCAL);
+				loadArg2(instruction);
+				code.op(IADD);
+				code.op(I2C);
+				load();
+				storeArg1SfZf(arg1);
+				extraCycle();
+				return false;
+			case 0x27:
+				code.aload(EMULATOR_LOCAL);
+				loadArg2(instruction);
+				code.op(I2C);
+				load();
+				storeArg1SfZf(arg1);
+				extraCycle();
+				return false;
+			case 0x28:
+				return alu(instruction, "shl", arg1, nextIp, true);
+			case 0x29:
+				return alu(instruction, "shlc", arg1, nextIp, true);
+			case 0x2A:
+				return alu(instruction, "shr", arg1, nextIp, true);
+			case 0x2B:
+				return alu(instruction, "shrc", arg1, nextIp, true);
+			case 0x2C:
+				return alu(instruction, "shra", arg1, nextIp, true);
+			case 0x38:
+				return alu(instruction, "add", arg1, nextIp, true);
+			case 0x39:
+				return alu(instruction, "addc", arg1, nextIp, true);
+			case 0x3A:
+				return alu(instruction, "sub", arg1, nextIp, true);
+			case 0x3B:
+				return alu(instruction, "subb", arg1, nextIp, true);
+			case 0x3C:
+				return alu(instruction, "sub", arg1, nextIp, false);
+			case 0x3D:
+				return alu(instruction, "sbbr", arg1, nextIp, true);
+			case 0x3E:
+				return alu(instruction, "subr", arg1, nextIp, true);
+		}
+
+		throw new IllegalStateException(String.format("Cannot compile opcode %02x", opcode));
+	}
+
+	private boolean alu(Instruction instruction, String operation, int arg1, short nextIp, boolean writesResult) {
+		code.aload(EMULATOR_LOCAL);
+		loadArg1(arg1, nextIp);
+		loadArg2(instruction);
+		code.op(INVOKEVIRTUAL, writer.methodRef(EMULATOR, operation, ALU_DESCRIPTOR));
+
+		if (writesResult)
+			storeArg1(arg1);
+		else
+			code.op(POP);
+
+		return false;
+	}
+
+	private void compileExit(Instruction instruction, int cycles, int instructions) {
+		for (int i = 0; i < REGISTERS.length; i++) {
+			code.aload(EMULATOR_LOCAL);
+			code.iload(REGISTER_LOCALS + i);
+			code.op(PUTFIELD, register(i));
+		}
+
+		code.aload(EMULATOR_LOCAL);
+		code.iload(NEXT_IP_LOCAL);
+		code.iload(CYCLES_LOCAL);
+		code.iconst(cycles);
+		code.op(IADD);
+		code.iconst(instructions);
+		code.iconst(instruction.address);
+		code.iconst(instruction.instruction);
+		code.iconst(instruction.immediate);
+		code.iload(TAKEN_LOCAL);
+		code.op(INVOKEVIRTUAL, writer.methodRef(EMULATOR, "retireBlock", "(SIISSSZ)V"));
+		code.op(RETURN);
+	}
+
+	private void loadArg1(int arg1, short nextIp) {
+		if (arg1 == 7)
+			code.iconst(nextIp);
+		else
+			code.iload(REGISTER_LOCALS + arg1);
+	}
+
+	private void loadArg2(Instruction instruction) {
+		int arg2 = instruction.getArg2();
+
+		if (arg2 < 4)
+			code.iload(REGISTER_LOCALS + arg2);
+		else if (arg2 == 4)
+			code.iconst(0);
+		else if (arg2 == 5)
+			code.iconst(1);
+		else if (arg2 == 6)
+			code.iconst(-1);
+		else
+			code.iconst(instruction.immediate);
+	}
+
+	private void storeArg1(int arg1) {
+		if (arg1 == 7)
+			code.istore(NEXT_IP_LOCAL);
+		else
+			code.istore(REGISTER_LOCALS + arg1);
+	}
+
+	private void storeArg1SfZf(int arg1) {
+		code.istore(TEMP_LOCAL);
+		code.aload(EMULATOR_LOCAL);
+		code.iload(TEMP_LOCAL);
+		code.op(INVOKEVIRTUAL, writer.methodRef(EMULATOR, "setSfZf", "(S)V"));
+		code.iload(TEMP_LOCAL);
+		storeArg1(arg1);
+	}
+
+	private void load() {
+		code.op(INVOKEVIRTUAL, writer.methodRef(EMULATOR, "load", "(I)S"));
+	}
+
+	private void store() {
+		code.op(INVOKEVIRTUAL, writer.methodRef(EMULATOR, "store", "(IS)V"));
+	}
+
+	private void incrementSp(int amount) {
+		code.iload(SP_LOCAL);
+		code.iconst(amount);
+		code.op(IADD);
+		code.op(I2S);
+		code.istore(SP_LOCAL);
+	}
+
+	private void extraCycle() {
+		code.iinc(CYCLES_LOCAL, 1);
+	}
+
+	private int register(int index) {
+		return writer.fieldRef(EMULATOR, REGISTERS[index], "S");
+	}
+
+	private static class CodeWriteExit {
+		private final Label label = new Label();
+		private final Instruction instruction;
+		private final int index;
+		private final int cycles;
+		private final short nextIp;
+
+		CodeWriteExit(Instruction instruction, int index, int cycles, short nextIp) {
+			this.instruction = instruction;
+			this.index = index;
+			this.cycles = cycles;
+			this.nextIp = nextIp;
+		}
+	}
+}
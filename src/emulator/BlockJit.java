@@ -0,0 +1,208 @@
+package emulator;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.function.IntSupplier;
+
+public class BlockJit {
+
+	private static final int COMPILE_THRESHOLD = 16;
+	private static final int NOT_COMPILABLE = -1;
+	private static final int MAX_BLOCK_SPAN = BlockCompiler.MAX_BLOCK_LENGTH * 2;
+
+	private final Emulator emulator;
+	private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+	private final CompiledBlock[] blocks = new CompiledBlock[65536];
+	private final int[] blockEnds = new int[65536];
+	private final int[] entryCounts = new int[65536];
+	private final int[] coverage = new int[65536];
+
+	public boolean verify = false;
+	public long compiledBlocks = 0;
+	public long mismatches = 0;
+
+	private Emulator shadow;
+	private short recordedInput;
+
+	public BlockJit(Emulator emulator) {
+		this.emulator = emulator;
+		emulator.jit = this;
+	}
+
+	public void detach() {
+		if (emulator.jit == this)
+			emulator.jit = null;
+	}
+
+	public void executeBlock() {
+		int start = Short.toUnsignedInt(emulator.ip);
+		CompiledBlock block = blocks[start];
+
+		if (block == null && !emulator.error && entryCounts[start] != NOT_COMPILABLE && ++entryCounts[start] >= COMPILE_THRESHOLD)
+			block = compile(start);
+
+		if (block == null) {
+			interpretBlock();
+		} else if (verify) {
+			verifyBlock(start, block);
+		} else {
+			emulator.codeWritten = false;
+			block.execute(emulator);
+		}
+	}
+
+	private void interpretBlock() {
+		for (int i = 0; i < BlockCompiler.MAX_BLOCK_LENGTH; i++) {
+			emulator.executeInstruction();
+
+			if (emulator.error || BlockCompiler.endsBlock(emulator.previousInstructionWord))
+				break;
+		}
+	}
+
+	private CompiledBlock compile(int start) {
+		FlightEvents.JitCompile event = null;
+		if (FlightEvents.ENABLED) {
+			event = new FlightEvents.JitCompile();
+			event.begin();
+		}
+
+		BlockCompiler compiler = new BlockCompiler(emulator, start);
+
+		if (compiler.isEmpty()) {
+			entryCounts[start] = NOT_COMPILABLE;
+			return null;
+		}
+
+		CompiledBlock block;
+		byte[] classFile = compiler.toByteArray();
+		try {
+			MethodHandles.Lookup hidden = lookup.defineHiddenClass(classFile, true);
+			block = (CompiledBlock) hidden.lookupClass().getConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			e.printStackTrace();
+			entryCounts[start] = NOT_COMPILABLE;
+			compiled(event, start, compiler.getEnd(), classFile.length, false);
+			return null;
+		}
+
+		blocks[start] = block;
+		blockEnds[start] = compiler.getEnd();
+		for (int i = start; i < compiler.getEnd(); i++)
+			coverage[i]++;
+
+		compiledBlocks++;
+		compiled(event, start, compiler.getEnd(), classFile.length, true);
+		return block;
+	}
+
+	private void compiled(FlightEvents.JitCompile event, int start, int end, int classSize, boolean succeeded) {
+		if (event == null)
+			return;
+
+		event.end();
+
+		if (event.shouldCommit()) {
+			event.startAddress = start;
+			event.endAddress = end;
+			event.symbol = FlightEvents.symbolAt(emulator.symbols, start);
+			event.classSize = classSize;
+			event.succeeded = succeeded;
+			event.commit();
+		}
+	}
+
+	void invalidate(int address) {
+		if (coverage[address] == 0)
+			return;
+
+		for (int start = Math.max(0, address - MAX_BLOCK_SPAN); start <= address; start++) {
+			if (blocks[start] != null && address < blockEnds[start])
+				remove(start);
+		}
+
+		entryCounts[address] = 0;
+		emulator.codeWritten = true;
+	}
+
+	private void remove(int start) {
+		for (int i = start; i < blockEnds[start]; i++)
+			coverage[i]--;
+
+		blocks[start] = null;
+		blockEnds[start] = 0;
+		entryCounts[start] = 0;
+	}
+
+	public void flush() {
+		Arrays.fill(blocks, null);
+		Arrays.fill(blockEnds, 0);
+		Arrays.fill(entryCounts, 0);
+		Arrays.fill(coverage, 0);
+	}
+
+	private void verifyBlock(int start, CompiledBlock block) {
+		if (shadow == null)
+			shadow = new Emulator();
+
+		shadow.restore(emulator.snapshot());
+
+		IntSupplier input = emulator.input;
+		if (input != null) {
+			emulator.input = () -> recordedInput = (short) input.getAsInt();
+			shadow.input = () -> recordedInput;
+		}
+
+		long retired = emulator.instructionsRetired;
+
+		try {
+			emulator.codeWritten = false;
+			block.execute(emulator);
+		} finally {
+			emulator.input = input;
+		}
+
+		for (long i = emulator.instructionsRetired - retired; i > 0; i--)
+			shadow.executeInstruction();
+
+		String difference = findDifference(emulator, shadow);
+		if (difference != null) {
+			mismatches++;
+			System.err.printf("JIT mismatch in block %04x: %s\n", start, difference);
+
+			emulator.restore(shadow.snapshot());
+			if (blocks[start] != null)
+				remove(start);
+			entryCounts[start] = NOT_COMPILABLE;
+		}
+	}
+
+	private static String findDifference(Emulator compiled, Emulator interpreted) {
+		String[] names = {"a", "b", "c", "d", "e", "fp", "sp", "ip", "out", "flags"};
+		for (String name : names) {
+			if (compiled.get(name) != interpreted.get(name))
+				return String.format("%s is %04x, expected %04x", name, compiled.get(name), interpreted.get(name));
+		}
+
+		if (compiled.tpat != interpreted.tpat || compiled.fpat != interpreted.fpat)
+			return "tpat/fpat differ";
+		if (compiled.error != interpreted.error)
+			return "error flag differs";
+		if (compiled.cycleCount != interpreted.cycleCount)
+			return String.format("cycleCount is %d, expected %d", compiled.cycleCount, interpreted.cycleCount);
+		if (compiled.instructionsRetired != interpreted.instructionsRetired)
+			return String.format("instructionsRetired is %d, expected %d", compiled.instructionsRetired, interpreted.instructionsRetired);
+		if (compiled.outputTripped != interpreted.outputTripped)
+			return "outputTripped differs";
+		if (compiled.previousAddress != interpreted.previousAddress || compiled.previousInstructionWord != interpreted.previousInstructionWord ||
+				compiled.previousImmediate != interpreted.previousImmediate || compiled.previousInstructionWasTaken != interpreted.previousInstructionWasTaken)
+			return "previous instruction differs";
+
+		int address = compiled.findMemoryDifference(interpreted);
+		if (address >= 0)
+			return String.format("&%04x is %04x, expected %04x", address, compiled.load(address), interpreted.load(address));
+
+		return null;
+	}
+}
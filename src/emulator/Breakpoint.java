@@ -0,0 +1,139 @@
+package emulator;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+class Breakpoint {
+	static final int IP = 0;
+	static final int REGISTER = 1;
+	static final int MEMORY = 2;
+	static final int ON_OUT = 3;
+	static final int SOUT = 4;
+
+	private static final String[] REGISTERS = {"a", "b", "c", "d", "e", "fp", "sp", "out", "zf", "sf", "cf", "of", "flags"};
+
+	private final String name;
+	private final short value;
+	private final int kind;
+	private final int index;
+
+	Breakpoint(String name, short value) {
+		this.name = name;
+		this.value = value;
+
+		if (name.equals("ip")) {
+			kind = IP;
+			index = 0;
+		} else if (name.equals("on-out")) {
+			kind = ON_OUT;
+			index = 0;
+		} else if (name.equals("@sout")) {
+			kind = SOUT;
+			index = 0;
+		} else if (name.startsWith("&")) {
+			kind = MEMORY;
+			index = Integer.parseInt(name.substring(1), 16);
+		} else {
+			kind = REGISTER;
+			index = Arrays.asList(REGISTERS).indexOf(name);
+		}
+	}
+
+	static short readRegister(Emulator emulator, int register) {
+		switch (register) {
+			case 0:
+				return emulator.a;
+			case 1:
+				return emulator.b;
+			case 2:
+				return emulator.c;
+			case 3:
+				return emulator.d;
+			case 4:
+				return emulator.e;
+			case 5:
+				return emulator.fp;
+			case 6:
+				return emulator.sp;
+			case 7:
+				return emulator.out;
+			case 8:
+				return (short) (emulator.zf() ? 1 : 0);
+			case 9:
+				return (short) (emulator.sf() ? 1 : 0);
+			case 10:
+				return (short) (emulator.cf() ? 1 : 0);
+			case 11:
+				return (short) (emulator.of() ? 1 : 0);
+			case 12:
+				return emulator.getFlags();
+		}
+
+		return 0;
+	}
+
+	static boolean returnedBelow(Emulator emulator, int stackPointer) {
+		return Instruction.getOpcode(emulator.previousInstructionWord) == 0x06 &&
+				Instruction.getArg1(emulator.previousInstructionWord) == 0x07 && emulator.previousInstructionWasTaken &&
+				Short.toUnsignedInt(emulator.sp) < stackPointer;
+	}
+
+	boolean matches(Emulator emulator) {
+		switch (kind) {
+			case IP:
+				return emulator.ip == value;
+			case MEMORY:
+				return emulator.load(index) == value;
+			case ON_OUT:
+				return emulator.outputTripped;
+			case SOUT:
+				return returnedBelow(emulator, Short.toUnsignedInt(value));
+		}
+
+		return readRegister(emulator, index) == value;
+	}
+
+	int getKind() {
+		return kind;
+	}
+
+	int getIndex() {
+		return index;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(name, value);
+	}
+
+	@Override
+	public String toString() {
+		if (kind == IP)
+			return String.format("ip = %s", Main.getAddressString(Short.toUnsignedInt(value)));
+		else if (kind == MEMORY) {
+			return String.format("&%s = %04x", Main.getAddressString(index), value);
+		} else if (kind == ON_OUT) {
+			return name;
+		}
+
+		return String.format("%s = %04x", name, value);
+	}
+
+	String getName() {
+		return name;
+	}
+
+	short getValue() {
+		return value;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == null) return false;
+		if (!(obj instanceof Breakpoint)) return false;
+
+		Breakpoint bp = (Breakpoint) obj;
+
+		return name.equals(bp.getName()) && value == bp.getValue();
+	}
+}
@@ -0,0 +1,250 @@
+package emulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+class Breakpoints {
+
+	private final Emulator emulator;
+	private final LinkedHashSet<Breakpoint> breakpoints = new LinkedHashSet<>();
+	private final ArrayList<Watchpoint> watchpoints = new ArrayList<>();
+
+	final long[] instructionPointers = new long[1024];
+	private final long[] watchedAddresses = new long[1024];
+	private Breakpoint[] memoryBreakpoints = new Breakpoint[0];
+	private int[] registers = new int[0];
+	private short[] registerValues = new short[0];
+	private boolean onOut;
+	private int soutLimit = -1;
+	private final int[] watchedPages = new int[256];
+
+	private boolean armed;
+	private boolean memoryWritten;
+	private boolean predicates;
+	boolean pending;
+
+	private Watchpoint hitWatchpoint;
+	private int hitType;
+	private int hitAddress;
+	private short hitInstruction;
+	private short hitOld;
+	private short hitNew;
+
+	Breakpoints(Emulator emulator) {
+		this.emulator = emulator;
+		emulator.breakpoints = this;
+	}
+
+	boolean add(Breakpoint breakpoint) {
+		if (!breakpoints.add(breakpoint))
+			return false;
+
+		rebuild();
+		return true;
+	}
+
+	boolean remove(Breakpoint breakpoint) {
+		if (!breakpoints.remove(breakpoint))
+			return false;
+
+		rebuild();
+		return true;
+	}
+
+	void clear() {
+		breakpoints.clear();
+		rebuild();
+	}
+
+	void addWatchpoint(Watchpoint watchpoint) {
+		watchpoints.add(watchpoint);
+		rebuildWatchedPages();
+	}
+
+	boolean removeWatchpoint(int index) {
+		if (index < 0 || index >= watchpoints.size())
+			return false;
+
+		watchpoints.remove(index);
+		rebuildWatchedPages();
+		return true;
+	}
+
+	void clearWatchpoints() {
+		watchpoints.clear();
+		rebuildWatchedPages();
+	}
+
+	List<Watchpoint> getWatchpoints() {
+		return watchpoints;
+	}
+
+	boolean isEmpty() {
+		return breakpoints.isEmpty() && watchpoints.isEmpty();
+	}
+
+	void arm() {
+		armed = true;
+		pending = true;
+		hitWatchpoint = null;
+	}
+
+	void loaded(int address) {
+		if ((watchedPages[address >>> 8] & Watchpoint.READ) != 0)
+			accessed(Watchpoint.READ, address, emulator.load(address), emulator.load(address));
+	}
+
+	void stored(int address, short old, short value) {
+		if ((watchedAddresses[address >>> 6] >>> address & 1) != 0) {
+			memoryWritten = true;
+			pending = true;
+		}
+
+		int types = watchedPages[address >>> 8];
+		if ((types & Watchpoint.WRITE) != 0)
+			accessed(Watchpoint.WRITE, address, old, value);
+		if ((types & Watchpoint.CHANGE) != 0 && old != value)
+			accessed(Watchpoint.CHANGE, address, old, value);
+	}
+
+	private void accessed(int type, int address, short old, short value) {
+		if (hitWatchpoint != null)
+			return;
+
+		for (Watchpoint watchpoint : watchpoints) {
+			if ((watchpoint.getType() & type) != 0 && watchpoint.covers(address)) {
+				hitWatchpoint = watchpoint;
+				pending = true;
+				hitType = type;
+				hitAddress = address;
+				hitInstruction = emulator.previousAddress;
+				hitOld = old;
+				hitNew = value;
+				return;
+			}
+		}
+	}
+
+	String takeWatchpointHit() {
+		if (hitWatchpoint == null)
+			return null;
+
+		String access = hitType == Watchpoint.READ ? "Read" : hitType == Watchpoint.WRITE ? "Write" : "Change";
+		String message;
+
+		if (hitType == Watchpoint.READ) {
+			message = String.format("%s of &%s by instruction at %s: %04x\n%s", access, Main.getAddressString(hitAddress),
+					Main.getAddressString(Short.toUnsignedInt(hitInstruction)), hitOld, hitWatchpoint);
+		} else {
+			message = String.format("%s of &%s by instruction at %s: %04x -> %04x\n%s", access, Main.getAddressString(hitAddress),
+					Main.getAddressString(Short.toUnsignedInt(hitInstruction)), hitOld, hitNew, hitWatchpoint);
+		}
+
+		hitWatchpoint = null;
+		return message;
+	}
+
+	boolean check() {
+		if (hitWatchpoint != null)
+			return true;
+
+		pending = predicates;
+
+		if (armed) {
+			armed = false;
+			memoryWritten = false;
+			return find() != null;
+		}
+
+		int ip = Short.toUnsignedInt(emulator.ip);
+		if ((instructionPointers[ip >>> 6] >>> ip & 1) != 0)
+			return true;
+
+		if (memoryWritten) {
+			memoryWritten = false;
+
+			for (Breakpoint breakpoint : memoryBreakpoints) {
+				if (breakpoint.matches(emulator))
+					return true;
+			}
+		}
+
+		for (int i = 0; i < registers.length; i++) {
+			if (Breakpoint.readRegister(emulator, registers[i]) == registerValues[i])
+				return true;
+		}
+
+		if (onOut && emulator.outputTripped)
+			return true;
+
+		return soutLimit >= 0 && Breakpoint.returnedBelow(emulator, soutLimit);
+	}
+
+	Breakpoint find() {
+		for (Breakpoint breakpoint : breakpoints) {
+			if (breakpoint.matches(emulator))
+				return breakpoint;
+		}
+
+		return null;
+	}
+
+	private void rebuild() {
+		Arrays.fill(instructionPointers, 0);
+		Arrays.fill(watchedAddresses, 0);
+		ArrayList<Breakpoint> memory = new ArrayList<>();
+		ArrayList<Breakpoint> register = new ArrayList<>();
+		onOut = false;
+		soutLimit = -1;
+
+		for (Breakpoint breakpoint : breakpoints) {
+			int kind = breakpoint.getKind();
+
+			if (kind == Breakpoint.IP) {
+				int ip = Short.toUnsignedInt(breakpoint.getValue());
+				instructionPointers[ip >>> 6] |= 1L << ip;
+			} else if (kind == Breakpoint.MEMORY) {
+				int address = breakpoint.getIndex();
+				watchedAddresses[address >>> 6] |= 1L << address;
+				memory.add(breakpoint);
+			} else if (kind == Breakpoint.ON_OUT) {
+				onOut = true;
+			} else if (kind == Breakpoint.SOUT) {
+				soutLimit = Math.max(soutLimit, Short.toUnsignedInt(breakpoint.getValue()));
+			} else {
+				register.add(breakpoint);
+			}
+		}
+
+		memoryBreakpoints = memory.toArray(new Breakpoint[0]);
+		registers = new int[register.size()];
+		registerValues = new short[register.size()];
+
+		for (int i = 0; i < registers.length; i++) {
+			registers[i] = register.get(i).getIndex();
+			registerValues[i] = register.get(i).getValue();
+		}
+
+		predicates = registers.length > 0 || onOut || soutLimit >= 0;
+		memoryWritten = true;
+		pending = true;
+		watchMemory();
+	}
+
+	private void rebuildWatchedPages() {
+		Arrays.fill(watchedPages, 0);
+
+		for (Watchpoint watchpoint : watchpoints) {
+			for (int page = watchpoint.getStart() >>> 8; page <= watchpoint.getEnd() >>> 8; page++)
+				watchedPages[page] |= watchpoint.getType();
+		}
+
+		watchMemory();
+	}
+
+	private void watchMemory() {
+		emulator.memoryWatch = memoryBreakpoints.length > 0 || !watchpoints.isEmpty() ? this : null;
+	}
+}
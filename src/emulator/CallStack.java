@@ -0,0 +1,191 @@
+package emulator;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class CallStack {
+
+	private final Emulator emulator;
+	private final Node root = new Node(null, -1);
+
+	private int depth = 0;
+	private Node[] nodes = new Node[64];
+	private short[] returnAddresses = new short[64];
+	private short[] returnStackPointers = new short[64];
+
+	public CallStack(Emulator emulator) {
+		this.emulator = emulator;
+		nodes[0] = root;
+		attach();
+	}
+
+	public void attach() {
+		emulator.callStack = this;
+	}
+
+	public void detach() {
+		if (emulator.callStack == this)
+			emulator.callStack = null;
+	}
+
+	void retired(long cycles, boolean retired) {
+		nodes[depth].self += cycles;
+
+		if (!retired || !emulator.previousInstructionWasTaken)
+			return;
+
+		short instruction = emulator.previousInstructionWord;
+		int opcode = Instruction.getOpcode(instruction);
+
+		if (Instruction.getArg1(instruction) != 7)
+			return;
+
+		short returnAddress = (short) (emulator.previousAddress + (Instruction.hasImmediate(instruction) ? 2 : 1));
+
+		if (opcode == 0x07)
+			push(returnAddress, (short) (emulator.sp - 1));
+		else if (opcode == 0x12)
+			push(returnAddress, (short) (emulator.sp + emulator.getArg2(Instruction.getArg2(instruction), emulator.previousImmediate)));
+		else if (opcode == 0x06)
+			pop();
+	}
+
+	void steppedBack() {
+		short instruction = emulator.previousInstructionWord;
+		int opcode = Instruction.getOpcode(instruction);
+
+		if (!emulator.previousInstructionWasTaken || Instruction.getArg1(instruction) != 7)
+			return;
+
+		if (opcode == 0x07 || opcode == 0x12) {
+			if (depth > 0 && nodes[depth].address == Short.toUnsignedInt(emulator.ip))
+				nodes[depth--] = null;
+		} else if (opcode == 0x06) {
+			reset();
+		}
+	}
+
+	private void push(short returnAddress, short returnStackPointer) {
+		if (depth + 1 == nodes.length) {
+			nodes = Arrays.copyOf(nodes, nodes.length * 2);
+			returnAddresses = Arrays.copyOf(returnAddresses, nodes.length);
+			returnStackPointers = Arrays.copyOf(returnStackPointers, nodes.length);
+		}
+
+		int target = Short.toUnsignedInt(emulator.ip);
+		Node caller = nodes[depth];
+
+		depth++;
+		nodes[depth] = caller.children.computeIfAbsent(target, address -> new Node(caller, address));
+		nodes[depth].calls++;
+		returnAddresses[depth] = returnAddress;
+		returnStackPointers[depth] = returnStackPointer;
+	}
+
+	private void pop() {
+		for (int frame = depth; frame > 0; frame--) {
+			if (returnAddresses[frame] == emulator.ip && returnStackPointers[frame] == emulator.sp) {
+				Arrays.fill(nodes, frame, depth + 1, null);
+				depth = frame - 1;
+				return;
+			}
+		}
+	}
+
+	public void reset() {
+		Arrays.fill(nodes, 1, depth + 1, null);
+		depth = 0;
+	}
+
+	public void clear() {
+		reset();
+		root.children.clear();
+		root.self = 0;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	void printBacktrace(PrintStream out) {
+		out.printf("#0  %s\n", Main.getAddressString(Short.toUnsignedInt(emulator.ip)));
+
+		for (int frame = depth; frame > 0; frame--) {
+			out.printf("#%-2d %s, in %s\n", depth - frame + 1, Main.getAddressString(Short.toUnsignedInt(returnAddresses[frame])),
+					frame > 1 ? Main.getAddressString(nodes[frame - 1].address) : "<root>");
+		}
+	}
+
+	void printCallGraph(PrintStream out, SymbolIndex symbols, double minimumPercent) {
+		long total = root.inclusive();
+
+		out.printf("%12s %12s %7s %10s  %s\n", "inclusive", "self", "%", "calls", "function");
+		printNode(out, symbols, root, 0, total, total * minimumPercent / 100);
+	}
+
+	private void printNode(PrintStream out, SymbolIndex symbols, Node node, int level, long total, double threshold) {
+		long inclusive = node.inclusive();
+		if (inclusive < threshold || inclusive == 0)
+			return;
+
+		out.printf("%12d %12d %6.2f%% %10d  %" + (level * 2 + 1) + "s%s\n", inclusive, node.self, inclusive * 100.0 / total,
+				node.calls, "", node.getName(symbols));
+
+		ArrayList<Node> children = new ArrayList<>(node.children.values());
+		children.sort((first, second) -> Long.compare(second.inclusive(), first.inclusive()));
+
+		for (Node child : children)
+			printNode(out, symbols, child, level + 1, total, threshold);
+	}
+
+	void writeCollapsed(PrintStream out, SymbolIndex symbols) {
+		writeCollapsed(out, symbols, root, new StringBuilder());
+	}
+
+	private void writeCollapsed(PrintStream out, SymbolIndex symbols, Node node, StringBuilder path) {
+		int length = path.length();
+
+		if (length > 0)
+			path.append(';');
+		path.append(node.getName(symbols));
+
+		if (node.self > 0)
+			out.printf("%s %d\n", path, node.self);
+
+		for (Node child : node.children.values())
+			writeCollapsed(out, symbols, child, path);
+
+		path.setLength(length);
+	}
+
+	private static class Node {
+		private final Node parent;
+		private final int address;
+		private final HashMap<Integer, Node> children = new HashMap<>();
+		private long self;
+		private long calls;
+
+		Node(Node parent, int address) {
+			this.parent = parent;
+			this.address = address;
+		}
+
+		long inclusive() {
+			long result = self;
+			for (Node child : children.values())
+				result += child.inclusive();
+
+			return result;
+		}
+
+		String getName(SymbolIndex symbols) {
+			if (parent == null)
+				return "<root>";
+
+			String name = symbols.get(address);
+			return name == null ? String.format("%04x", address) : name;
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+class ClassFileWriter {
+
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	static final int ICONST_0 = 0x03;
+	static final int BIPUSH = 0x10;
+	static final int SIPUSH = 0x11;
+	static final int ILOAD = 0x15;
+	static final int ALOAD = 0x19;
+	static final int ISTORE = 0x36;
+	static final int POP = 0x57;
+	static final int DUP = 0x59;
+	static final int IADD = 0x60;
+	static final int ISUB = 0x64;
+	static final int IINC = 0x84;
+	static final int I2C = 0x92;
+	static final int I2S = 0x93;
+	static final int IFEQ = 0x99;
+	static final int IFNE = 0x9A;
+	static final int GOTO = 0xA7;
+	static final int RETURN = 0xB1;
+	static final int GETFIELD = 0xB4;
+	static final int PUTFIELD = 0xB5;
+	static final int INVOKEVIRTUAL = 0xB6;
+	static final int INVOKESPECIAL = 0xB7;
+	static final int INVOKESTATIC = 0xB8;
+
+	private static final int CLASS_FILE_VERSION = 49;
+
+	private final ByteArrayOutputStream constantPool = new ByteArrayOutputStream();
+	private final DataOutputStream pool = new DataOutputStream(constantPool);
+	private final HashMap<String, Integer> constants = new HashMap<>();
+	private int constantCount = 1;
+
+	private final int thisClass;
+	private final int superClass;
+	private final int[] interfaces;
+	private final ArrayList<Code> methods = new ArrayList<>();
+
+	ClassFileWriter(String name, String superName, String... interfaceNames) {
+		thisClass = classRef(name);
+		superClass = classRef(superName);
+		interfaces = new int[interfaceNames.length];
+
+		for (int i = 0; i < interfaceNames.length; i++)
+			interfaces[i] = classRef(interfaceNames[i]);
+	}
+
+	Code method(int access, String name, String descriptor, int maxStack, int maxLocals) {
+		Code code = new Code(access, utf8(name), utf8(descriptor), maxStack, maxLocals);
+		methods.add(code);
+		return code;
+	}
+
+	int utf8(String value) {
+		return constant("U" + value, () -> {
+			pool.writeByte(1);
+			pool.writeUTF(value);
+		});
+	}
+
+	int classRef(String internalName) {
+		int name = utf8(internalName);
+		return constant("C" + internalName, () -> {
+			pool.writeByte(7);
+			pool.writeShort(name);
+		});
+	}
+
+	int fieldRef(String owner, String name, String descriptor) {
+		return memberRef(9, owner, name, descriptor);
+	}
+
+	int methodRef(String owner, String name, String descriptor) {
+		return memberRef(10, owner, name, descriptor);
+	}
+
+	private int memberRef(int tag, String owner, String name, String descriptor) {
+		int ownerClass = classRef(owner);
+		int nameIndex = utf8(name);
+		int descriptorIndex = utf8(descriptor);
+		int nameAndType = constant("N" + name + ":" + descriptor, () -> {
+			pool.writeByte(12);
+			pool.writeShort(nameIndex);
+			pool.writeShort(descriptorIndex);
+		});
+
+		return constant(tag + owner + "." + name + ":" + descriptor, () -> {
+			pool.writeByte(tag);
+			pool.writeShort(ownerClass);
+			pool.writeShort(nameAndType);
+		});
+	}
+
+	private int constant(String key, PoolEntry entry) {
+		Integer index = constants.get(key);
+		if (index != null)
+			return index;
+
+		try {
+			entry.write();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		constants.put(key, constantCount);
+		return constantCount++;
+	}
+
+	byte[] toByteArray() {
+		int code = utf8("Code");
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(CLASS_FILE_VERSION);
+			out.writeShort(constantCount);
+			constantPool.writeTo(out);
+
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(interfaces.length);
+			for (int i : interfaces)
+				out.writeShort(i);
+
+			out.writeShort(0);
+
+			out.writeShort(methods.size());
+			for (Code method : methods)
+				method.writeTo(out, code);
+
+			out.writeShort(0);
+
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private interface PoolEntry {
+		void write() throws IOException;
+	}
+
+	static class Label {
+		private int position = -1;
+		private final ArrayList<Integer> references = new ArrayList<>();
+	}
+
+	static class Code {
+		private final int access;
+		private final int name;
+		private final int descriptor;
+		private final int maxStack;
+		private final int maxLocals;
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final ArrayList<Label> labels = new ArrayList<>();
+
+		private Code(int access, int name, int descriptor, int maxStack, int maxLocals) {
+			this.access = access;
+			this.name = name;
+			this.descriptor = descriptor;
+			this.maxStack = maxStack;
+			this.maxLocals = maxLocals;
+		}
+
+		void op(int opcode) {
+			bytes.write(opcode);
+		}
+
+		void op(int opcode, int index) {
+			bytes.write(opcode);
+			bytes.write(index >>> 8);
+			bytes.write(index);
+		}
+
+		void iconst(int value) {
+			if (value >= -1 && value <= 5) {
+				bytes.write(ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				bytes.write(BIPUSH);
+				bytes.write(value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				op(SIPUSH, value);
+			} else {
+				throw new IllegalArgumentException("Constant out of range: " + value);
+			}
+		}
+
+		void iload(int local) {
+			bytes.write(ILOAD);
+			bytes.write(local);
+		}
+
+		void istore(int local) {
+			bytes.write(ISTORE);
+			bytes.write(local);
+		}
+
+		void aload(int local) {
+			bytes.write(ALOAD);
+			bytes.write(local);
+		}
+
+		void iinc(int local, int amount) {
+			bytes.write(IINC);
+			bytes.write(local);
+			bytes.write(amount);
+		}
+
+		void jump(int opcode, Label label) {
+			label.references.add(bytes.size());
+			op(opcode, 0);
+		}
+
+		void mark(Label label) {
+			label.position = bytes.size();
+			labels.add(label);
+		}
+
+		private void writeTo(DataOutputStream out, int codeAttribute) throws IOException {
+			byte[] code = bytes.toByteArray();
+
+			for (Label label : labels) {
+				for (int reference : label.references) {
+					int offset = label.position - reference;
+					code[reference + 1] = (byte) (offset >>> 8);
+					code[reference + 2] = (byte) offset;
+				}
+			}
+
+			out.writeShort(access);
+			out.writeShort(name);
+			out.writeShort(descriptor);
+			out.writeShort(1);
+
+			out.writeShort(codeAttribute);
+			out.writeInt(12 + code.length);
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(code.length);
+			out.write(code);
+			out.writeShort(0);
+			out.writeShort(0);
+		}
+	}
+}
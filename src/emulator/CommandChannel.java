@@ -0,0 +1,45 @@
+package emulator;
+
+import java.util.concurrent.locks.LockSupport;
+
+final class CommandChannel<T> {
+
+	private static final int CAPACITY = 16;
+	private static final int MASK = CAPACITY - 1;
+
+	private final Object[] ring = new Object[CAPACITY];
+
+	private volatile long head = 0;
+	private volatile long tail = 0;
+	private volatile Thread consumer;
+
+	void send(T command) {
+		long position = tail;
+
+		while (position - head >= CAPACITY) {
+			LockSupport.unpark(consumer);
+			Thread.onSpinWait();
+		}
+
+		ring[(int) position & MASK] = command;
+		tail = position + 1;
+
+		LockSupport.unpark(consumer);
+	}
+
+	@SuppressWarnings("unchecked")
+	T receive() {
+		consumer = Thread.currentThread();
+		long position = head;
+
+		while (tail == position)
+			LockSupport.park(this);
+
+		int index = (int) position & MASK;
+		T command = (T) ring[index];
+		ring[index] = null;
+		head = position + 1;
+
+		return command;
+	}
+}
@@ -0,0 +1,5 @@
+package emulator;
+
+interface CompiledBlock {
+	void execute(Emulator emulator);
+}
@@ -5,13 +5,47 @@ import java.util.function.IntSupplier;
 
 public class Emulator {
 
-	public short[] memory = new short[65536];
+	private final MemoryPage[] pages = new MemoryPage[MemoryPage.COUNT];
+	private final boolean[] ownedPages = new boolean[MemoryPage.COUNT];
+
+	private static final int DECODED = 0x10000;
+	private static final int DECODED_INVALID = 0x20000;
+	private static final int DECODED_IMMEDIATE = 0x40000;
+
+
+	private static final int CANCEL_POLL_INTERVAL = 1024;
+	private static final int JIT_CYCLE_MARGIN = BlockCompiler.MAX_BLOCK_LENGTH * 4;
 
 	public short a, b, c, d, e, fp, sp, ip;
 
 	public short out;
 
-	public boolean zf, sf, cf, of;
+	private static final int FLAGS_MATERIALIZED = 0;
+	private static final int FLAGS_RESULT = 1;
+	private static final int FLAGS_ADD = 2;
+	private static final int FLAGS_SUB = 3;
+
+	private static final int ZF = 1;
+	private static final int SF = 2;
+	private static final int CF = 4;
+	private static final int OF = 8;
+
+	private static final int[] CONDITIONS = new int[16];
+
+	static {
+		for (int flags = 0; flags < 16; flags++) {
+			for (int condition = 0; condition < 16; condition++) {
+				if (evaluateCondition(condition, (flags & ZF) != 0, (flags & SF) != 0, (flags & CF) != 0, (flags & OF) != 0))
+					CONDITIONS[condition] |= 1 << flags;
+			}
+		}
+	}
+
+	private int flags;
+
+	private int lazyFlags = FLAGS_MATERIALIZED;
+	private short flagArg1, flagArg2;
+	private int flagResult;
 
 	public short tpat = 1, fpat;
 
@@ -19,310 +53,895 @@ public class Emulator {
 
 	public long instructionsRetired = 0;
 	public long cycleCount;
-	public Instruction previousInstruction = new Instruction((short) 0);
+
+	public short previousAddress;
+	public short previousInstructionWord;
+	public short previousImmediate;
+	private Instruction previousInstruction;
 
 	public boolean outputTripped = false;
 
 	public IntSupplier input = null;
 	public boolean previousInstructionWasTaken = false;
 
+	private volatile boolean cancelRequested = false;
+
+	BlockJit jit;
+	boolean codeWritten;
+	Breakpoints breakpoints;
+	Breakpoints memoryWatch;
+	UndoLog undoLog;
+	TraceWriter trace;
+	Profiler profiler;
+	CallStack callStack;
+	IdleDetector idle;
+	EmulatorMetrics metrics;
+	EmulatorMetrics opcodeCounter;
+	SymbolIndex symbols;
+	private int breakpointSample = EmulatorMetrics.BREAKPOINT_SAMPLE_INTERVAL;
+
+	public Emulator() {
+		Arrays.fill(pages, MemoryPage.ZERO);
+	}
+
+	public Instruction getPreviousInstruction() {
+		if (previousInstruction == null) {
+			previousInstruction = new Instruction(previousAddress);
+			previousInstruction.instruction = previousInstructionWord;
+			previousInstruction.immediate = previousImmediate;
+		}
+
+		return previousInstruction;
+	}
+
+	public StopReason run(long maxCycles, int stopMask) {
+		if (FlightEvents.ENABLED)
+			return recordedRun(maxCycles, stopMask);
+		if (metrics == null)
+			return runLoop(maxCycles, stopMask);
+
+		long start = System.nanoTime();
+		StopReason reason = runLoop(maxCycles, stopMask);
+		metrics.ran(reason, System.nanoTime() - start);
+		return reason;
+	}
+
+	private StopReason recordedRun(long maxCycles, int stopMask) {
+		FlightEvents.Run event = new FlightEvents.Run();
+		int startAddress = Short.toUnsignedInt(ip);
+		long startCycles = cycleCount;
+		long startRetired = instructionsRetired;
+		long start = System.nanoTime();
+
+		event.begin();
+		StopReason reason = runLoop(maxCycles, stopMask);
+		event.end();
+
+		if (metrics != null)
+			metrics.ran(reason, System.nanoTime() - start);
+
+		if (event.shouldCommit()) {
+			event.stopReason = reason.name();
+			event.instructions = instructionsRetired - startRetired;
+			event.cycles = cycleCount - startCycles;
+			event.startAddress = startAddress;
+			event.startSymbol = FlightEvents.symbolAt(symbols, startAddress);
+			event.stopAddress = Short.toUnsignedInt(ip);
+			event.stopSymbol = FlightEvents.symbolAt(symbols, event.stopAddress);
+			event.commit();
+		}
+
+		return reason;
+	}
+
+	private StopReason runLoop(long maxCycles, int stopMask) {
+		long cycleLimit = maxCycles > Long.MAX_VALUE - cycleCount ? Long.MAX_VALUE : cycleCount + maxCycles;
+		boolean stopOnOutput = (stopMask & StopReason.OUTPUT.mask) != 0;
+		boolean stopOnInput = (stopMask & StopReason.INPUT.mask) != 0;
+		boolean stopOnBreakpoint = (stopMask & StopReason.BREAKPOINT.mask) != 0 && breakpoints != null && !breakpoints.isEmpty();
+		boolean compiled = jit != null && !isInstrumented() && !stopOnBreakpoint && !stopOnInput;
+		boolean detectIdle = idle != null && !isInstrumented();
+		Breakpoints stops = breakpoints;
+		long[] instructionPointers = stopOnBreakpoint ? stops.instructionPointers : null;
+		int poll = CANCEL_POLL_INTERVAL;
+
+		if (stopOnBreakpoint)
+			breakpoints.arm();
+		if (detectIdle)
+			idle.reset();
+
+		while (true) {
+			if (compiled && !error && cycleLimit - cycleCount > JIT_CYCLE_MARGIN)
+				jit.executeBlock();
+			else
+				executeInstruction();
+
+			if (error)
+				return StopReason.INVALID_INSTRUCTION;
+			if (stopOnBreakpoint && (stops.pending || (instructionPointers[Short.toUnsignedInt(ip) >>> 6] >>> ip & 1) != 0) && checkBreakpoints()) {
+				breakpointHit();
+				return StopReason.BREAKPOINT;
+			}
+			if (stopOnOutput && outputTripped)
+				return StopReason.OUTPUT;
+			if (stopOnInput && nextInstructionReadsInput())
+				return StopReason.INPUT;
+			if (detectIdle)
+				idle.observe(cycleLimit);
+			if (cycleCount >= cycleLimit)
+				return StopReason.CYCLE_BUDGET;
+
+			if (--poll == 0) {
+				poll = CANCEL_POLL_INTERVAL;
+
+				if (cancelRequested) {
+					cancelRequested = false;
+					return StopReason.CANCELLED;
+				}
+			}
+		}
+	}
+
+	private boolean checkBreakpoints() {
+		if (metrics == null || --breakpointSample > 0)
+			return breakpoints.check();
+
+		breakpointSample = EmulatorMetrics.BREAKPOINT_SAMPLE_INTERVAL;
+
+		long start = System.nanoTime();
+		boolean hit = breakpoints.check();
+		metrics.breakpointsChecked(EmulatorMetrics.BREAKPOINT_SAMPLE_INTERVAL, System.nanoTime() - start);
+		return hit;
+	}
+
+	private void breakpointHit() {
+		if (!FlightEvents.ENABLED)
+			return;
+
+		FlightEvents.BreakpointHit event = new FlightEvents.BreakpointHit();
+		if (!event.shouldCommit())
+			return;
+
+		Breakpoint breakpoint = breakpoints.find();
+		if (breakpoint != null)
+			event.breakpoint = String.format("%s = %04x", breakpoint.getName(), breakpoint.getValue());
+
+		event.address = Short.toUnsignedInt(ip);
+		event.symbol = FlightEvents.symbolAt(symbols, event.address);
+		event.cycle = cycleCount;
+		event.commit();
+	}
+
+	public void cancel() {
+		cancelRequested = true;
+
+		if (idle != null)
+			idle.wake();
+	}
+
+	void clearCancel() {
+		cancelRequested = false;
+	}
+
+	boolean isCancelRequested() {
+		return cancelRequested;
+	}
+
+	private boolean isInstrumented() {
+		return undoLog != null || trace != null || profiler != null || callStack != null || opcodeCounter != null;
+	}
+
+	private boolean nextInstructionReadsInput() {
+		MemoryPage page = pages[Short.toUnsignedInt(ip) >>> MemoryPage.BITS];
+		int decoded = page.decoded[ip & MemoryPage.MASK];
+
+		if (decoded == 0)
+			decoded = decode(page, ip & MemoryPage.MASK);
+
+		return (decoded & DECODED_INVALID) == 0 && Instruction.getOpcode((short) decoded) == 0x23;
+	}
+
 	public void executeInstruction() {
+		if (!isInstrumented()) {
+			execute();
+			return;
+		}
+
+		short address = ip;
+		long cycles = cycleCount;
+		long retired = instructionsRetired;
+
+		if (undoLog != null)
+			undoLog.begin();
+		try {
+			execute();
+		} finally {
+			if (undoLog != null)
+				undoLog.end();
+		}
+
+		if (trace != null && instructionsRetired != retired)
+			trace.retired();
+		if (profiler != null)
+			profiler.record(address, cycleCount - cycles, instructionsRetired != retired);
+		if (callStack != null)
+			callStack.retired(cycleCount - cycles, instructionsRetired != retired);
+		if (opcodeCounter != null && instructionsRetired != retired)
+			opcodeCounter.retired(previousInstructionWord);
+	}
+
+	private void execute() {
 		cycleCount++;
 
 		if (error)
 			return;
 
-		Instruction instruction = new Instruction(ip);
+		short address = ip;
+		MemoryPage page = pages[Short.toUnsignedInt(ip) >>> MemoryPage.BITS];
+		int decoded = page.decoded[ip & MemoryPage.MASK];
 
-		instruction.instruction = memory[Short.toUnsignedInt(ip)];
+		if (decoded == 0)
+			decoded = decode(page, ip & MemoryPage.MASK);
 
-		if (instruction.isInvalid()) {
+		if ((decoded & DECODED_INVALID) != 0) {
 			error = true;
 			return;
 		}
 
+		short instruction = (short) decoded;
+
 		instructionsRetired++;
 
 		ip++;
 
-		if (instruction.hasImmediate()) {
-			instruction.immediate = memory[Short.toUnsignedInt(ip)];
+		short immediate = 0;
+		if ((decoded & DECODED_IMMEDIATE) != 0) {
+			immediate = load(Short.toUnsignedInt(ip));
 			ip++;
 			cycleCount++;
 		}
 
-		previousInstruction = instruction;
+		previousAddress = address;
+		previousInstructionWord = instruction;
+		previousImmediate = immediate;
+		previousInstruction = null;
 		outputTripped = false;
 
-		previousInstructionWasTaken = conditionMet(instruction);
+		previousInstructionWasTaken = conditionMet(Instruction.getCondition(instruction));
 
 		if (!previousInstructionWasTaken)
 			return;
 
-		int opcode = instruction.getOpcode();
-		short arg1 = getArg1(instruction);
-		short arg2 = getArg2(instruction);
-		if (opcode == 0x01) {
-			setArg1(instruction, arg2);
-		} else if (opcode == 0x02) {
-			memory[Short.toUnsignedInt(sp)] = arg1;
-			sp++;
-			cycleCount++;
-		} else if (opcode == 0x03) {
-			memory[Short.toUnsignedInt(sp)] = arg2;
-			sp++;
-			cycleCount++;
-		} else if (opcode == 0x04) {
-			memory[Short.toUnsignedInt(arg2)] = arg1;
-			cycleCount++;
-		} else if (opcode == 0x05) {
-			memory[Short.toUnsignedInt(arg1)] = arg2;
-			cycleCount++;
-		} else if (opcode == 0x06) {
-			setArg1(instruction, memory[Short.toUnsignedInt((short) (sp - 1))]);
-			sp--;
-			cycleCount++;
-		} else if (opcode == 0x07) {
-			memory[Short.toUnsignedInt(sp)] = arg1;
-			sp++;
-			setArg1(instruction, arg2);
-			cycleCount++;
-		} else if (opcode == 0x08) {
-			setArg1(instruction, e);
-		} else if (opcode == 0x09) {
-			setArg1(instruction, fp);
-		} else if (opcode == 0x0A) {
-			setArg1(instruction, sp);
-		} else if (opcode == 0x0B) {
-			setArg1(instruction, ip);
-		} else if (opcode == 0x0C) {
-			short flags = 0;
-			if (zf)
-				flags |= 1;
-			if (sf)
-				flags |= 2;
-			if (cf)
-				flags |= 4;
-			if (of)
-				flags |= 8;
-
-			setArg1(instruction, flags);
-		} else if (opcode == 0x0D) {
-			memory[Short.toUnsignedInt((short) (fp + arg2))] = arg1;
-			cycleCount++;
-		} else if (opcode == 0x0E) {
-			short flags = arg2;
-
-			zf = (flags & 1) != 0;
-			sf = (flags & 2) != 0;
-			cf = (flags & 4) != 0;
-			of = (flags & 8) != 0;
-		} else if (opcode == 0x0F) {
-			memory[Short.toUnsignedInt((short) (sp + arg2))] = arg1;
-			cycleCount++;
-		} else if (opcode == 0x10) {
-			out = arg2;
-			outputTripped = true;
-		} else if (opcode == 0x12) {
-			short temp = memory[Short.toUnsignedInt((short) (sp + arg2))];
-			memory[Short.toUnsignedInt((short) (sp + arg2))] = arg1;
-
-			setArg1(instruction, temp);
-			cycleCount++;
-		} else if (opcode == 0x14) {
-			if ((arg2 & 1) == 0)
-				fpat = arg1;
-			else
-				tpat = arg1;
-		} else if (opcode == 0x15) {
-			switch (instruction.getArg2()) {
-				case 0:
-					short temp = a;
-					a = arg1;
-					setArg1(instruction, temp);
-					break;
-				case 1:
-					temp = b;
-					b = arg1;
-					setArg1(instruction, temp);
-					break;
-				case 2:
-					temp = c;
-					c = arg1;
-					setArg1(instruction, temp);
-					break;
-				case 3:
-					temp = d;
-					d = arg1;
-					setArg1(instruction, temp);
-					break;
-				case 4:
-					temp = e;
-					e = arg1;
-					setArg1(instruction, temp);
-					break;
-				case 5:
-					temp = fp;
-					fp = arg1;
-					setArg1(instruction, temp);
-					break;
-				case 6:
-					temp = sp;
-					sp = arg1;
-					setArg1(instruction, temp);
-					break;
-				case 7:
-					temp = ip;
-					ip = arg1;
-					setArg1(instruction, temp);
-					break;
+		int opcode = Instruction.getOpcode(instruction);
+		int arg1Index = Instruction.getArg1(instruction);
+		int arg2Index = Instruction.getArg2(instruction);
+		short arg1 = getArg1(arg1Index);
+		short arg2 = getArg2(arg2Index, immediate);
+		switch (opcode) {
+			case 0x01:
+				setArg1(arg1Index, arg2);
+				break;
+			case 0x02:
+				store(Short.toUnsignedInt(sp), arg1);
+				sp++;
+				cycleCount++;
+				break;
+			case 0x03:
+				store(Short.toUnsignedInt(sp), arg2);
+				sp++;
+				cycleCount++;
+				break;
+			case 0x04:
+				store(Short.toUnsignedInt(arg2), arg1);
+				cycleCount++;
+				break;
+			case 0x05:
+				store(Short.toUnsignedInt(arg1), arg2);
+				cycleCount++;
+				break;
+			case 0x06:
+				setArg1(arg1Index, read(Short.toUnsignedInt((short) (sp - 1))));
+				sp--;
+				cycleCount++;
+				break;
+			case 0x07:
+				store(Short.toUnsignedInt(sp), arg1);
+				sp++;
+				setArg1(arg1Index, arg2);
+				cycleCount++;
+				break;
+			case 0x08:
+				setArg1(arg1Index, e);
+				break;
+			case 0x09:
+				setArg1(arg1Index, fp);
+				break;
+			case 0x0A:
+				setArg1(arg1Index, sp);
+				break;
+			case 0x0B:
+				setArg1(arg1Index, ip);
+				break;
+			case 0x0C:
+				setArg1(arg1Index, getFlags());
+				break;
+			case 0x0D:
+				store(Short.toUnsignedInt((short) (fp + arg2)), arg1);
+				cycleCount++;
+				break;
+			case 0x0E:
+				setFlags(arg2);
+				break;
+			case 0x0F:
+				store(Short.toUnsignedInt((short) (sp + arg2)), arg1);
+				cycleCount++;
+				break;
+			case 0x10:
+				out = arg2;
+				outputTripped = true;
+				break;
+			case 0x12: {
+				short temp = read(Short.toUnsignedInt((short) (sp + arg2)));
+				store(Short.toUnsignedInt((short) (sp + arg2)), arg1);
+
+				setArg1(arg1Index, temp);
+				cycleCount++;
+				break;
 			}
-		} else if (opcode == 0x16) {
-			setArg1(instruction, QueryDevice.get(Short.toUnsignedInt(arg2)));
-		} else if (opcode == 0x17) {
-			setArg1(instruction, memory[Short.toUnsignedInt((short) (sp + arg2))]);
-			cycleCount++;
-		} else if (opcode == 0x18) {
-			setArg1SfZf(instruction, arg1 == arg2 ? tpat : fpat);
-		} else if (opcode == 0x19) {
-			setArg1SfZf(instruction, (short) (arg1 & arg2));
-		} else if (opcode == 0x1A) {
-			setSfZf((short) (arg1 & arg2));
-		} else if (opcode == 0x1B) {
-			setArg1SfZf(instruction, (short) ~(arg1 & arg2));
-		} else if (opcode == 0x1C) {
-			setArg1SfZf(instruction, (short) (arg1 | arg2));
-		} else if (opcode == 0x1D) {
-			setArg1SfZf(instruction, (short) ~(arg1 | arg2));
-		} else if (opcode == 0x1E) {
-			setArg1SfZf(instruction, (short) (arg1 ^ arg2));
-		} else if (opcode == 0x1F) {
-			setArg1SfZf(instruction, (short) ~(arg1 ^ arg2));
-		} else if (opcode == 0x20) {
-			setArg1SfZf(instruction, rotateLeft(arg1, arg2));
-		} else if (opcode == 0x21) {
-			setArg1SfZf(instruction, rotateRight(arg1, arg2));
-		} else if (opcode == 0x22) {
-			short temp = memory[Short.toUnsignedInt(arg2)];
-
-			memory[Short.toUnsignedInt(arg2)] = arg1;
-			setArg1SfZf(instruction, temp);
-			cycleCount++;
-		} else if (opcode == 0x23) {
-			setArg1SfZf(instruction, (short) (input == null ? 0 : input.getAsInt()));
-		} else if (opcode == 0x24) {
-			setArg1SfZf(instruction, arg1 != arg2 ? tpat : fpat);
-		} else if (opcode == 0x25) {
-			setArg1SfZf(instruction, memory[Short.toUnsignedInt((short) (fp + arg2))]);
-			cycleCount++;
-		} else if (opcode == 0x26) {
-			setArg1SfZf(instruction, memory[Short.toUnsignedInt((short) (sp + arg2))]);
-			cycleCount++;
-		} else if (opcode == 0x27) {
-			setArg1SfZf(instruction, memory[Short.toUnsignedInt(arg2)]);
-			cycleCount++;
-		} else if (opcode == 0x28) {
-			int temp = Short.toUnsignedInt(arg1);
-			temp <<= (arg2 & 0xF);
-			cf = (temp & 0x10000) != 0;
-			setArg1SfZf(instruction, (short) temp);
-		} else if (opcode == 0x29) {
-			int temp = Short.toUnsignedInt(arg1);
-			temp <<= 1;
-			if (cf)
-				temp |= 1;
-			temp <<= (arg2 & 0xF);
-			temp >>>= 1;
-			cf = (temp & 0x10000) != 0;
-			setArg1SfZf(instruction, (short) temp);
-		} else if (opcode == 0x2A) {
-			int temp = Short.toUnsignedInt(arg1);
-			temp <<= 1;
-			temp >>>= (arg2 & 0xF);
-			cf = (temp & 0x1) != 0;
-			temp >>>= 1;
-			setArg1SfZf(instruction, (short) temp);
-		} else if (opcode == 0x2B) {
-			int temp = Short.toUnsignedInt(arg1);
-			if (cf)
-				temp |= 0x10000;
-			temp <<= 1;
-			temp >>>= (arg2 & 0xF);
-			cf = (temp & 0x1) != 0;
-			temp >>>= 1;
-			setArg1SfZf(instruction, (short) temp);
-		} else if (opcode == 0x2C) {
-			int temp = arg1;
-			temp <<= 1;
-			temp >>= (arg2 & 0xF);
-			cf = (temp & 0x1) != 0;
-			temp >>= 1;
-			setArg1SfZf(instruction, (short) temp);
-		} else if (opcode == 0x38) {
-			int result = Short.toUnsignedInt(arg1) + Short.toUnsignedInt(arg2);
-
-			cf = (result & 0x10000) != 0;
-			of = (arg1 < 0 && arg2 < 0 && result >= 0) || (arg1 >= 0 && arg2 >= 0 && result < 0);
-
-			setArg1SfZf(instruction, (short) result);
-		} else if (opcode == 0x39) {
-			int result = Short.toUnsignedInt(arg1) + Short.toUnsignedInt(arg2);
-			if (cf)
-				result++;
-
-			cf = (result & 0x10000) != 0;
-			of = (arg1 < 0 && arg2 < 0 && result >= 0) || (arg1 >= 0 && arg2 >= 0 && result < 0);
-
-			setArg1SfZf(instruction, (short) result);
-		} else if (opcode == 0x3A) {
-			arg2 = (short) -arg2;
-			int result = Short.toUnsignedInt(arg1) + Short.toUnsignedInt(arg2);
-
-			cf = (result & 0x10000) == 0;
-			of = (arg1 < 0 && arg2 < 0 && result >= 0) || (arg1 >= 0 && arg2 >= 0 && result < 0);
-
-			setArg1SfZf(instruction, (short) result);
-		} else if (opcode == 0x3B) {
-			arg2 = (short) -arg2;
-			int result = Short.toUnsignedInt(arg1) + Short.toUnsignedInt(arg2);
-			if (cf)
-				result--;
-
-			cf = (result & 0x10000) == 0;
-			of = (arg1 < 0 && arg2 < 0 && result >= 0) || (arg1 >= 0 && arg2 >= 0 && result < 0);
-
-			setArg1SfZf(instruction, (short) result);
-		} else if (opcode == 0x3C) {
-			arg2 = (short) -arg2;
-			int result = Short.toUnsignedInt(arg1) + Short.toUnsignedInt(arg2);
-
-			cf = (result & 0x10000) == 0;
-			of = (arg1 < 0 && arg2 < 0 && result >= 0) || (arg1 >= 0 && arg2 >= 0 && result < 0);
-
-			setSfZf((short) result);
-		} else if (opcode == 0x3D) {
-			arg1 = (short) -arg1;
-			int result = Short.toUnsignedInt(arg1) + Short.toUnsignedInt(arg2);
-			if (cf)
-				result--;
-
-			cf = (result & 0x10000) == 0;
-			of = (arg1 < 0 && arg2 < 0 && result >= 0) || (arg1 >= 0 && arg2 >= 0 && result < 0);
-
-			setArg1SfZf(instruction, (short) result);
-		} else if (opcode == 0x3E) {
-			arg1 = (short) -arg1;
-			int result = Short.toUnsignedInt(arg1) + Short.toUnsignedInt(arg2);
-
-			cf = (result & 0x10000) == 0;
-			of = (arg1 < 0 && arg2 < 0 && result >= 0) || (arg1 >= 0 && arg2 >= 0 && result < 0);
-
-			setArg1SfZf(instruction, (short) result);
-		} else {
-			error = true;
+			case 0x14:
+				setPattern(arg1, arg2);
+				break;
+			case 0x15:
+				switch (arg2Index) {
+					case 0:
+						short temp = a;
+						a = arg1;
+						setArg1(arg1Index, temp);
+						break;
+					case 1:
+						temp = b;
+						b = arg1;
+						setArg1(arg1Index, temp);
+						break;
+					case 2:
+						temp = c;
+						c = arg1;
+						setArg1(arg1Index, temp);
+						break;
+					case 3:
+						temp = d;
+						d = arg1;
+						setArg1(arg1Index, temp);
+						break;
+					case 4:
+						temp = e;
+						e = arg1;
+						setArg1(arg1Index, temp);
+						break;
+					case 5:
+						temp = fp;
+						fp = arg1;
+						setArg1(arg1Index, temp);
+						break;
+					case 6:
+						temp = sp;
+						sp = arg1;
+						setArg1(arg1Index, temp);
+						break;
+					case 7:
+						temp = ip;
+						ip = arg1;
+						setArg1(arg1Index, temp);
+						break;
+				}
+				break;
+			case 0x16:
+				setArg1(arg1Index, QueryDevice.get(Short.toUnsignedInt(arg2)));
+				break;
+			case 0x17:
+				setArg1(arg1Index, read(Short.toUnsignedInt((short) (sp + arg2))));
+				cycleCount++;
+				break;
+			case 0x18:
+				setArg1(arg1Index, steq(arg1, arg2));
+				break;
+			case 0x19:
+				setArg1(arg1Index, and(arg1, arg2));
+				break;
+			case 0x1A:
+				and(arg1, arg2);
+				break;
+			case 0x1B:
+				setArg1(arg1Index, nand(arg1, arg2));
+				break;
+			case 0x1C:
+				setArg1(arg1Index, or(arg1, arg2));
+				break;
+			case 0x1D:
+				setArg1(arg1Index, nor(arg1, arg2));
+				break;
+			case 0x1E:
+				setArg1(arg1Index, xor(arg1, arg2));
+				break;
+			case 0x1F:
+				setArg1(arg1Index, xnor(arg1, arg2));
+				break;
+			case 0x20:
+				setArg1(arg1Index, rotl(arg1, arg2));
+				break;
+			case 0x21:
+				setArg1(arg1Index, rotr(arg1, arg2));
+				break;
+			case 0x22: {
+				short temp = read(Short.toUnsignedInt(arg2));
+
+				store(Short.toUnsignedInt(arg2), arg1);
+				setArg1SfZf(arg1Index, temp);
+				cycleCount++;
+				break;
+			}
+			case 0x23:
+				setArg1SfZf(arg1Index, readInput());
+				break;
+			case 0x24:
+				setArg1(arg1Index, stnq(arg1, arg2));
+				break;
+			case 0x25:
+				setArg1SfZf(arg1Index, read(Short.toUnsignedInt((short) (fp + arg2))));
+				cycleCount++;
+				break;
+			case 0x26:
+				setArg1SfZf(arg1Index, read(Short.toUnsignedInt((short) (sp + arg2))));
+				cycleCount++;
+				break;
+			case 0x27:
+				setArg1SfZf(arg1Index, read(Short.toUnsignedInt(arg2)));
+				cycleCount++;
+				break;
+			case 0x28:
+				setArg1(arg1Index, shl(arg1, arg2));
+				break;
+			case 0x29:
+				setArg1(arg1Index, shlc(arg1, arg2));
+				break;
+			case 0x2A:
+				setArg1(arg1Index, shr(arg1, arg2));
+				break;
+			case 0x2B:
+				setArg1(arg1Index, shrc(arg1, arg2));
+				break;
+			case 0x2C:
+				setArg1(arg1Index, shra(arg1, arg2));
+				break;
+			case 0x38:
+				setArg1(arg1Index, add(arg1, arg2));
+				break;
+			case 0x39:
+				setArg1(arg1Index, addc(arg1, arg2));
+				break;
+			case 0x3A:
+				setArg1(arg1Index, sub(arg1, arg2));
+				break;
+			case 0x3B:
+				setArg1(arg1Index, subb(arg1, arg2));
+				break;
+			case 0x3C:
+				sub(arg1, arg2);
+				break;
+			case 0x3D:
+				setArg1(arg1Index, sbbr(arg1, arg2));
+				break;
+			case 0x3E:
+				setArg1(arg1Index, subr(arg1, arg2));
+
+				break;
+			default:
+				error = true;
+				break;
 		}
 	}
 
+	private static int decode(MemoryPage page, int offset) {
+		short instruction = page.words[offset];
+		int decoded = Short.toUnsignedInt(instruction) | DECODED;
+
+		if (Instruction.isInvalid(instruction))
+			decoded |= DECODED_INVALID;
+		if (Instruction.hasImmediate(instruction))
+			decoded |= DECODED_IMMEDIATE;
+
+		page.decoded[offset] = decoded;
+		return decoded;
+	}
+
+	public short load(int address) {
+		return pages[address >>> MemoryPage.BITS].words[address & MemoryPage.MASK];
+	}
+
+	private short read(int address) {
+		if (memoryWatch != null)
+			memoryWatch.loaded(address);
+
+		return load(address);
+	}
+
+	public void store(int address, short value) {
+		int offset = address & MemoryPage.MASK;
+		MemoryPage page = pages[address >>> MemoryPage.BITS];
+		short old = page.words[offset];
+
+		if (old != value) {
+			page = writablePage(address >>> MemoryPage.BITS);
+			page.words[offset] = value;
+			page.decoded[offset] = 0;
+
+			if (undoLog != null)
+				undoLog.stored(address, old);
+			if (idle != null)
+				idle.stored();
+		}
+
+		if (jit != null)
+			jit.invalidate(address);
+		if (memoryWatch != null)
+			memoryWatch.stored(address, old, value);
+	}
+
+	void restoreWord(int address, short value) {
+		int offset = address & MemoryPage.MASK;
+
+		if (pages[address >>> MemoryPage.BITS].words[offset] == value)
+			return;
+
+		MemoryPage page = writablePage(address >>> MemoryPage.BITS);
+		page.words[offset] = value;
+		page.decoded[offset] = 0;
+
+		if (jit != null)
+			jit.invalidate(address);
+	}
+
+	private MemoryPage writablePage(int index) {
+		MemoryPage page = pages[index];
+
+		if (!ownedPages[index]) {
+			page = page.copy();
+			pages[index] = page;
+			ownedPages[index] = true;
+		}
+
+		return page;
+	}
+
+	public void setMemory(short[] memory) {
+		for (int i = 0; i < pages.length; i++) {
+			pages[i] = MemoryPage.of(memory, i << MemoryPage.BITS);
+			ownedPages[i] = pages[i] != MemoryPage.ZERO;
+		}
+
+		flushDecodeCache();
+	}
+
+	public void setMemory(MemoryImage image) {
+		for (int i = 0; i < pages.length; i++) {
+			if (pages[i] != image.pages[i] && jit != null) {
+				for (int offset = 0; offset < MemoryPage.SIZE; offset++) {
+					if (pages[i].words[offset] != image.pages[i].words[offset])
+						jit.invalidate(i << MemoryPage.BITS | offset);
+				}
+			}
+
+			pages[i] = image.pages[i];
+		}
+
+		Arrays.fill(ownedPages, false);
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	public void restore(Snapshot snapshot) {
+		snapshot.restoreTo(this);
+	}
+
+	public Emulator fork() {
+		Emulator emulator = new Emulator();
+		emulator.input = input;
+		emulator.restore(snapshot());
+		return emulator;
+	}
+
+	public MemoryImage shareMemory() {
+		Arrays.fill(ownedPages, false);
+		return new MemoryImage(pages.clone());
+	}
+
+	public short[] getMemory() {
+		short[] memory = new short[65536];
+
+		for (int i = 0; i < pages.length; i++)
+			System.arraycopy(pages[i].words, 0, memory, i << MemoryPage.BITS, MemoryPage.SIZE);
+
+		return memory;
+	}
+
+	int findMemoryDifference(Emulator other) {
+		for (int i = 0; i < pages.length; i++) {
+			if (pages[i] == other.pages[i])
+				continue;
+
+			int offset = Arrays.mismatch(pages[i].words, other.pages[i].words);
+			if (offset >= 0)
+				return (i << MemoryPage.BITS) + offset;
+		}
+
+		return -1;
+	}
+
+	public int getOwnedPageCount() {
+		int count = 0;
+		for (boolean owned : ownedPages) {
+			if (owned)
+				count++;
+		}
+
+		return count;
+	}
+
+	public void flushDecodeCache() {
+		for (int i = 0; i < pages.length; i++) {
+			if (ownedPages[i])
+				Arrays.fill(pages[i].decoded, 0);
+		}
+
+		if (jit != null)
+			jit.flush();
+	}
+
+	void setPreviousInstruction(short address, short instruction, short immediate, boolean taken) {
+		previousAddress = address;
+		previousInstructionWord = instruction;
+		previousImmediate = immediate;
+		previousInstruction = null;
+		previousInstructionWasTaken = taken;
+	}
+
+	void retireBlock(short ip, int cycles, int instructions, short address, short instruction, short immediate, boolean taken) {
+		this.ip = ip;
+		cycleCount += cycles;
+		instructionsRetired += instructions;
+
+		setPreviousInstruction(address, instruction, immediate, taken);
+	}
+
+	public boolean zf() {
+		return lazyFlags == FLAGS_MATERIALIZED ? (flags & ZF) != 0 : (short) flagResult == 0;
+	}
+
+	public boolean sf() {
+		return lazyFlags == FLAGS_MATERIALIZED ? (flags & SF) != 0 : (short) flagResult < 0;
+	}
+
+	public boolean cf() {
+		if (lazyFlags == FLAGS_ADD)
+			return (flagResult & 0x10000) != 0;
+		else if (lazyFlags == FLAGS_SUB)
+			return (flagResult & 0x10000) == 0;
+
+		return (flags & CF) != 0;
+	}
+
+	public boolean of() {
+		if (lazyFlags == FLAGS_ADD || lazyFlags == FLAGS_SUB)
+			return (flagArg1 < 0 && flagArg2 < 0 && flagResult >= 0) || (flagArg1 >= 0 && flagArg2 >= 0 && flagResult < 0);
+
+		return (flags & OF) != 0;
+	}
+
+	public short getFlags() {
+		if (lazyFlags == FLAGS_MATERIALIZED)
+			return (short) flags;
+
+		int flags = carryOverflow();
+		if ((short) flagResult == 0)
+			flags |= ZF;
+		if ((short) flagResult < 0)
+			flags |= SF;
+
+		return (short) flags;
+	}
+
+	public void setFlags(short flags) {
+		this.flags = flags & 0xF;
+		lazyFlags = FLAGS_MATERIALIZED;
+	}
+
+	private void materializeFlags() {
+		if (lazyFlags == FLAGS_MATERIALIZED)
+			return;
+
+		flags = getFlags();
+		lazyFlags = FLAGS_MATERIALIZED;
+	}
+
+	private void materializeCarryOverflow() {
+		if (lazyFlags == FLAGS_ADD || lazyFlags == FLAGS_SUB) {
+			flags = carryOverflow();
+			lazyFlags = FLAGS_RESULT;
+		}
+	}
+
+	private int carryOverflow() {
+		int flags = this.flags & (CF | OF);
+		if (lazyFlags == FLAGS_ADD || lazyFlags == FLAGS_SUB) {
+			flags = 0;
+			if (cf())
+				flags |= CF;
+			if (of())
+				flags |= OF;
+		}
+
+		return flags;
+	}
+
+	private short addFlags(int kind, short arg1, short arg2, int result) {
+		lazyFlags = kind;
+		flagArg1 = arg1;
+		flagArg2 = arg2;
+		flagResult = result;
+
+		return (short) result;
+	}
+
+	void setPattern(short arg1, short arg2) {
+		if ((arg2 & 1) == 0)
+			fpat = arg1;
+		else
+			tpat = arg1;
+	}
+
+	short readInput() {
+		return (short) (input == null ? 0 : input.getAsInt());
+	}
+
+	short steq(short arg1, short arg2) {
+		return flagged(arg1 == arg2 ? tpat : fpat);
+	}
+
+	short stnq(short arg1, short arg2) {
+		return flagged(arg1 != arg2 ? tpat : fpat);
+	}
+
+	short and(short arg1, short arg2) {
+		return flagged((short) (arg1 & arg2));
+	}
+
+	short nand(short arg1, short arg2) {
+		return flagged((short) ~(arg1 & arg2));
+	}
+
+	short or(short arg1, short arg2) {
+		return flagged((short) (arg1 | arg2));
+	}
+
+	short nor(short arg1, short arg2) {
+		return flagged((short) ~(arg1 | arg2));
+	}
+
+	short xor(short arg1, short arg2) {
+		return flagged((short) (arg1 ^ arg2));
+	}
+
+	short xnor(short arg1, short arg2) {
+		return flagged((short) ~(arg1 ^ arg2));
+	}
+
+	short rotl(short arg1, short arg2) {
+		return flagged(rotateLeft(arg1, arg2));
+	}
+
+	short rotr(short arg1, short arg2) {
+		return flagged(rotateRight(arg1, arg2));
+	}
+
+	short shl(short arg1, short arg2) {
+		int temp = Short.toUnsignedInt(arg1);
+		temp <<= (arg2 & 0xF);
+		return shifted((temp & 0x10000) != 0, (short) temp);
+	}
+
+	short shlc(short arg1, short arg2) {
+		int temp = Short.toUnsignedInt(arg1);
+		temp <<= 1;
+		if (cf())
+			temp |= 1;
+		temp <<= (arg2 & 0xF);
+		temp >>>= 1;
+		return shifted((temp & 0x10000) != 0, (short) temp);
+	}
+
+	short shr(short arg1, short arg2) {
+		int temp = Short.toUnsignedInt(arg1);
+		temp <<= 1;
+		temp >>>= (arg2 & 0xF);
+		boolean carry = (temp & 0x1) != 0;
+		temp >>>= 1;
+		return shifted(carry, (short) temp);
+	}
+
+	short shrc(short arg1, short arg2) {
+		int temp = Short.toUnsignedInt(arg1);
+		if (cf())
+			temp |= 0x10000;
+		temp <<= 1;
+		temp >>>= (arg2 & 0xF);
+		boolean carry = (temp & 0x1) != 0;
+		temp >>>= 1;
+		return shifted(carry, (short) temp);
+	}
+
+	short shra(short arg1, short arg2) {
+		int temp = arg1;
+		temp <<= 1;
+		temp >>= (arg2 & 0xF);
+		boolean carry = (temp & 0x1) != 0;
+		temp >>= 1;
+		return shifted(carry, (short) temp);
+	}
+
+	private short shifted(boolean carry, short value) {
+		materializeCarryOverflow();
+		flags = carry ? flags | CF : flags & ~CF;
+		return flagged(value);
+	}
+
+	short add(short arg1, short arg2) {
+		int result = Short.toUnsignedInt(arg1) + Short.toUnsignedInt(arg2);
+
+		return addFlags(FLAGS_ADD, arg1, arg2, result);
+	}
+
+	short addc(short arg1, short arg2) {
+		int result = Short.toUnsignedInt(arg1) + Short.toUnsignedInt(arg2);
+		if (cf())
+			result++;
+
+		return addFlags(FLAGS_ADD, arg1, arg2, result);
+	}
+
+	short sub(short arg1, short arg2) {
+		arg2 = (short) -arg2;
+		int result = Short.toUnsignedInt(arg1) + Short.toUnsignedInt(arg2);
+
+		return addFlags(FLAGS_SUB, arg1, arg2, result);
+	}
+
+	short subb(short arg1, short arg2) {
+		arg2 = (short) -arg2;
+		int result = Short.toUnsignedInt(arg1) + Short.toUnsignedInt(arg2);
+		if (cf())
+			result--;
+
+		return addFlags(FLAGS_SUB, arg1, arg2, result);
+	}
+
+	short sbbr(short arg1, short arg2) {
+		arg1 = (short) -arg1;
+		int result = Short.toUnsignedInt(arg1) + Short.toUnsignedInt(arg2);
+		if (cf())
+			result--;
+
+		return addFlags(FLAGS_SUB, arg1, arg2, result);
+	}
+
+	short subr(short arg1, short arg2) {
+		arg1 = (short) -arg1;
+		int result = Short.toUnsignedInt(arg1) + Short.toUnsignedInt(arg2);
+
+		return addFlags(FLAGS_SUB, arg1, arg2, result);
+	}
+
 	private short rotateLeft(short a, short b) {
 		b &= 0xF;
 		return (short) ((a << b) | (Short.toUnsignedInt(a) >>> (16 - b)));
@@ -333,10 +952,19 @@ public class Emulator {
 		return (short) ((a >>> b) | (a << (16 - b)));
 	}
 
-	private boolean conditionMet(Instruction instruction) {
-		switch (instruction.getCondition()) {
-			case 0:
-				return true;
+	boolean conditionMet(int condition) {
+		if (condition == 0)
+			return true;
+		else if (condition == 15)
+			return c != 0;
+
+		materializeFlags();
+
+		return (CONDITIONS[condition] >>> flags & 1) != 0;
+	}
+
+	private static boolean evaluateCondition(int condition, boolean zf, boolean sf, boolean cf, boolean of) {
+		switch (condition) {
 			case 1:
 				return !(cf | zf);
 			case 2:
@@ -366,14 +994,14 @@ public class Emulator {
 			case 14:
 				return !sf;
 			case 15:
-				return c != 0;
+				return false;
 		}
 
 		return true;
 	}
 
-	private short getArg1(Instruction instruction) {
-		switch (instruction.getArg1()) {
+	private short getArg1(int arg1) {
+		switch (arg1) {
 			case 0:
 				return a;
 			case 1:
@@ -395,8 +1023,8 @@ public class Emulator {
 		return 0;
 	}
 
-	private short getArg2(Instruction instruction) {
-		switch (instruction.getArg2()) {
+	short getArg2(int arg2, short immediate) {
+		switch (arg2) {
 			case 0:
 				return a;
 			case 1:
@@ -412,14 +1040,14 @@ public class Emulator {
 			case 6:
 				return -1;
 			case 7:
-				return instruction.immediate;
+				return immediate;
 		}
 
 		return 0;
 	}
 
-	private void setArg1(Instruction instruction, short value) {
-		switch (instruction.getArg1()) {
+	private void setArg1(int arg1, short value) {
+		switch (arg1) {
 			case 0:
 				a = value;
 				break;
@@ -447,15 +1075,21 @@ public class Emulator {
 		}
 	}
 
-	private void setSfZf(short value) {
-		zf = value == 0;
-		sf = value < 0;
+	void setSfZf(short value) {
+		materializeCarryOverflow();
+		lazyFlags = FLAGS_RESULT;
+		flagResult = value;
 	}
 
-	private void setArg1SfZf(Instruction instruction, short value) {
+	private short flagged(short value) {
+		setSfZf(value);
+		return value;
+	}
+
+	private void setArg1SfZf(int arg1, short value) {
 		setSfZf(value);
 
-		switch (instruction.getArg1()) {
+		switch (arg1) {
 			case 0:
 				a = value;
 				break;
@@ -493,16 +1127,16 @@ public class Emulator {
 		sp = 0;
 		ip = 0;
 
-		previousInstruction = new Instruction((short) 0);
+		previousAddress = 0;
+		previousInstructionWord = 0;
+		previousImmediate = 0;
+		previousInstruction = null;
 
 		out = 0;
 
 		outputTripped = false;
 
-		zf = false;
-		sf = false;
-		cf = false;
-		of = false;
+		setFlags((short) 0);
 
 		tpat = 1;
 		fpat = 0;
@@ -512,15 +1146,17 @@ public class Emulator {
 	}
 
 	public void resetMemory() {
-		Arrays.fill(memory, (short) 0);
+		Arrays.fill(pages, MemoryPage.ZERO);
+		Arrays.fill(ownedPages, false);
+		flushDecodeCache();
 	}
 
 	public Instruction instructionAt(int pointer) {
 		Instruction instruction = new Instruction((short) pointer);
 
-		instruction.instruction = memory[pointer];
+		instruction.instruction = load(pointer);
 		if (instruction.hasImmediate())
-			instruction.immediate = memory[Short.toUnsignedInt((short) (pointer + 1))];
+			instruction.immediate = load(Short.toUnsignedInt((short) (pointer + 1)));
 
 		return instruction;
 	}
@@ -545,28 +1181,17 @@ public class Emulator {
 		else if (name.equals("out"))
 			return out;
 		else if (name.matches("&[0-9A-Fa-f]{4}")) {
-			return memory[Integer.parseInt(name.substring(1), 16)];
+			return load(Integer.parseInt(name.substring(1), 16));
 		} else if (name.equals("zf"))
-			return (short) (zf ? 1 : 0);
+			return (short) (zf() ? 1 : 0);
 		else if (name.equals("sf"))
-			return (short) (sf ? 1 : 0);
+			return (short) (sf() ? 1 : 0);
 		else if (name.equals("cf"))
-			return (short) (cf ? 1 : 0);
+			return (short) (cf() ? 1 : 0);
 		else if (name.equals("of"))
-			return (short) (of ? 1 : 0);
-		else if (name.equals("flags")) {
-			short flags = 0;
-			if (zf)
-				flags |= 1;
-			if (sf)
-				flags |= 2;
-			if (cf)
-				flags |= 4;
-			if (of)
-				flags |= 8;
-
-			return flags;
-		}
+			return (short) (of() ? 1 : 0);
+		else if (name.equals("flags"))
+			return getFlags();
 
 		return 0;
 	}
@@ -0,0 +1,245 @@
+package emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class EmulatorMetrics {
+
+	static final int BREAKPOINT_SAMPLE_INTERVAL = 1024;
+
+	private final Emulator emulator;
+	private final long created = System.nanoTime();
+	private final long timerOverhead = measureTimerOverhead();
+
+	private final LongAdder runNanos = new LongAdder();
+	private final LongAdder runs = new LongAdder();
+	private final LongAdder[] stops = new LongAdder[StopReason.values().length];
+	private final LongAdder breakpointChecks = new LongAdder();
+	private final LongAdder breakpointSamples = new LongAdder();
+	private final LongAdder breakpointSampleNanos = new LongAdder();
+	private final LongAdder[] opcodes = new LongAdder[64];
+
+	volatile boolean countOpcodes = false;
+
+	private long sampleTime;
+	private long sampleCycles;
+	private long sampleInstructions;
+	private double cyclesPerSecond;
+	private double instructionsPerSecond;
+
+	private volatile Thread exporter;
+
+	public EmulatorMetrics(Emulator emulator) {
+		this.emulator = emulator;
+
+		for (int i = 0; i < stops.length; i++)
+			stops[i] = new LongAdder();
+		for (int i = 0; i < opcodes.length; i++)
+			opcodes[i] = new LongAdder();
+
+		sampleTime = created;
+		sampleCycles = emulator.cycleCount;
+		sampleInstructions = emulator.instructionsRetired;
+
+		emulator.metrics = this;
+	}
+
+	public void detach() {
+		stopExporter();
+
+		if (emulator.metrics == this)
+			emulator.metrics = null;
+		if (emulator.opcodeCounter == this)
+			emulator.opcodeCounter = null;
+	}
+
+	public void setCountOpcodes(boolean countOpcodes) {
+		this.countOpcodes = countOpcodes;
+
+		if (countOpcodes)
+			emulator.opcodeCounter = this;
+		else if (emulator.opcodeCounter == this)
+			emulator.opcodeCounter = null;
+	}
+
+	public boolean isCountingOpcodes() {
+		return countOpcodes;
+	}
+
+	void ran(StopReason reason, long nanos) {
+		runNanos.add(nanos);
+		runs.increment();
+		stops[reason.ordinal()].increment();
+	}
+
+	void breakpointsChecked(long checks, long sampleNanos) {
+		breakpointChecks.add(checks);
+		breakpointSamples.increment();
+		breakpointSampleNanos.add(Math.max(0, sampleNanos - timerOverhead));
+	}
+
+	private static long measureTimerOverhead() {
+		long overhead = Long.MAX_VALUE;
+
+		for (int i = 0; i < 1000; i++) {
+			long start = System.nanoTime();
+			overhead = Math.min(overhead, System.nanoTime() - start);
+		}
+
+		return overhead;
+	}
+
+	void retired(short instruction) {
+		opcodes[Instruction.getOpcode(instruction)].increment();
+	}
+
+	private synchronized void sample() {
+		long now = System.nanoTime();
+		long cycles = emulator.cycleCount;
+		long instructions = emulator.instructionsRetired;
+		long elapsed = now - sampleTime;
+
+		if (elapsed < TimeUnit.MILLISECONDS.toNanos(100))
+			return;
+
+		cyclesPerSecond = Math.max(0, cycles - sampleCycles) * 1e9 / elapsed;
+		instructionsPerSecond = Math.max(0, instructions - sampleInstructions) * 1e9 / elapsed;
+
+		sampleTime = now;
+		sampleCycles = cycles;
+		sampleInstructions = instructions;
+	}
+
+	public synchronized double getCyclesPerSecond() {
+		sample();
+		return cyclesPerSecond;
+	}
+
+	public synchronized double getInstructionsPerSecond() {
+		sample();
+		return instructionsPerSecond;
+	}
+
+	public double getRunningSeconds() {
+		return runNanos.sum() / 1e9;
+	}
+
+	public double getStoppedSeconds() {
+		return Math.max(0, System.nanoTime() - created - runNanos.sum()) / 1e9;
+	}
+
+	public double getBreakpointCheckNanos() {
+		long samples = breakpointSamples.sum();
+		return samples == 0 ? 0 : (double) breakpointSampleNanos.sum() / samples;
+	}
+
+	public void print(PrintStream out) {
+		out.printf("instructions/s: %.0f\n", getInstructionsPerSecond());
+		out.printf("cycles/s: %.0f\n", getCyclesPerSecond());
+		out.printf("running: %.3f s, stopped: %.3f s, %d runs\n", getRunningSeconds(), getStoppedSeconds(), runs.sum());
+
+		out.print("stops:");
+		for (StopReason reason : StopReason.values())
+			out.printf(" %s=%d", reason, stops[reason.ordinal()].sum());
+		out.println();
+
+		out.printf("breakpoint checks: %d, ~%.1f ns each\n", breakpointChecks.sum(), getBreakpointCheckNanos());
+
+		if (!countOpcodes)
+			return;
+
+		long total = 0;
+		for (LongAdder opcode : opcodes)
+			total += opcode.sum();
+
+		out.println("opcode mix:");
+		for (int i = 0; i < opcodes.length; i++) {
+			long count = opcodes[i].sum();
+			if (count > 0)
+				out.printf("  %02x %-6s %12d %6.2f%%\n", i, Instruction.getOpcodeName(i), count, count * 100.0 / total);
+		}
+	}
+
+	String toPrometheus() {
+		StringWriter text = new StringWriter();
+		PrintWriter out = new PrintWriter(text);
+
+		metric(out, "aq_instructions_retired_total", "counter", "Retired instructions.", emulator.instructionsRetired);
+		metric(out, "aq_cycles_total", "counter", "Emulated cycles.", emulator.cycleCount);
+		metric(out, "aq_instructions_per_second", "gauge", "Retired instructions per second since the previous sample.", getInstructionsPerSecond());
+		metric(out, "aq_cycles_per_second", "gauge", "Emulated cycles per second since the previous sample.", getCyclesPerSecond());
+		metric(out, "aq_running_seconds_total", "counter", "Wall time spent inside run().", getRunningSeconds());
+		metric(out, "aq_stopped_seconds_total", "counter", "Wall time spent outside run().", getStoppedSeconds());
+		metric(out, "aq_breakpoint_checks_total", "counter", "Breakpoint checks performed.", breakpointChecks.sum());
+		metric(out, "aq_breakpoint_check_nanoseconds", "gauge", "Sampled mean cost of one breakpoint check.", getBreakpointCheckNanos());
+
+		out.println("# HELP aq_runs_total Calls to run() by stop reason.");
+		out.println("# TYPE aq_runs_total counter");
+		for (StopReason reason : StopReason.values())
+			out.printf("aq_runs_total{reason=\"%s\"} %d\n", reason.name().toLowerCase(Locale.ROOT), stops[reason.ordinal()].sum());
+
+		if (countOpcodes) {
+			out.println("# HELP aq_opcode_retired_total Retired instructions by opcode.");
+			out.println("# TYPE aq_opcode_retired_total counter");
+			for (int i = 0; i < opcodes.length; i++) {
+				long count = opcodes[i].sum();
+				if (count > 0)
+					out.printf("aq_opcode_retired_total{opcode=\"%02x\",name=\"%s\"} %d\n", i, Instruction.getOpcodeName(i), count);
+			}
+		}
+
+		out.flush();
+		return text.toString();
+	}
+
+	private static void metric(PrintWriter out, String name, String type, String help, double value) {
+		out.printf("# HELP %s %s\n", name, help);
+		out.printf("# TYPE %s %s\n", name, type);
+		out.printf(Locale.ROOT, "%s %s\n", name, value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value));
+	}
+
+	public void writePrometheus(File file) throws IOException {
+		File temporary = new File(file.getPath() + ".tmp");
+		Files.write(temporary.toPath(), toPrometheus().getBytes(StandardCharsets.UTF_8));
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public void startExporter(File file, long intervalMillis) {
+		stopExporter();
+
+		long intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(100, intervalMillis));
+		Thread thread = new Thread(() -> {
+			while (exporter == Thread.currentThread()) {
+				try {
+					writePrometheus(file);
+				} catch (IOException e) {
+					System.err.println("Failed to write metrics: " + e.getMessage());
+				}
+
+				LockSupport.parkNanos(intervalNanos);
+			}
+		}, "Metrics exporter");
+
+		thread.setDaemon(true);
+		exporter = thread;
+		thread.start();
+	}
+
+	public void stopExporter() {
+		Thread thread = exporter;
+		exporter = null;
+
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+}
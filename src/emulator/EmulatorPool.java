@@ -0,0 +1,150 @@
+package emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+public class EmulatorPool implements AutoCloseable {
+
+	private final ForkJoinPool pool;
+
+	public EmulatorPool(int parallelism) {
+		pool = new ForkJoinPool(parallelism);
+	}
+
+	public EmulatorPool() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public CompletableFuture<Result> submit(Job job) {
+		return CompletableFuture.supplyAsync(() -> execute(job), pool);
+	}
+
+	public List<Result> runAll(List<Job> jobs) {
+		List<CompletableFuture<Result>> futures = new ArrayList<>(jobs.size());
+		for (Job job : jobs)
+			futures.add(submit(job));
+
+		List<Result> results = new ArrayList<>(jobs.size());
+		for (CompletableFuture<Result> future : futures)
+			results.add(future.join());
+
+		return results;
+	}
+
+	@Override
+	public void close() {
+		pool.shutdown();
+	}
+
+	public static Result execute(Job job) {
+		Emulator emulator = new Emulator();
+		emulator.setMemory(job.image);
+
+		int[] inputPosition = {0};
+		emulator.input = () -> inputPosition[0] < job.input.length ? job.input[inputPosition[0]++] & 0xFF : 0;
+
+		if (job.jit)
+			new BlockJit(emulator);
+
+		StringBuilder output = new StringBuilder();
+		StopReason reason;
+		long start = System.nanoTime();
+
+		do {
+			short previousOut = emulator.out;
+			reason = emulator.run(job.maxCycles - emulator.cycleCount, StopReason.OUTPUT.mask);
+
+			if (previousOut == 0 && emulator.out != 0)
+				output.append((char) emulator.out);
+		} while (reason == StopReason.OUTPUT && emulator.cycleCount < job.maxCycles);
+
+		if (reason == StopReason.OUTPUT)
+			reason = StopReason.CYCLE_BUDGET;
+
+		return new Result(job.name, reason, emulator, output.toString(), System.nanoTime() - start);
+	}
+
+	public static class Job {
+		public final String name;
+		public final MemoryImage image;
+		public final byte[] input;
+		public final long maxCycles;
+		public final boolean jit;
+
+		public Job(String name, MemoryImage image, byte[] input, long maxCycles, boolean jit) {
+			this.name = name;
+			this.image = image;
+			this.input = input;
+			this.maxCycles = maxCycles;
+			this.jit = jit;
+		}
+	}
+
+	public static class Result {
+		public final String name;
+		public final StopReason reason;
+		public final short a, b, c, d, e, fp, sp, ip, out, flags;
+		public final long cycleCount;
+		public final long instructionsRetired;
+		public final String output;
+		public final long elapsedNanos;
+
+		Result(String name, StopReason reason, Emulator emulator, String output, long elapsedNanos) {
+			this.name = name;
+			this.reason = reason;
+			a = emulator.a;
+			b = emulator.b;
+			c = emulator.c;
+			d = emulator.d;
+			e = emulator.e;
+			fp = emulator.fp;
+			sp = emulator.sp;
+			ip = emulator.ip;
+			out = emulator.out;
+			flags = emulator.getFlags();
+			cycleCount = emulator.cycleCount;
+			instructionsRetired = emulator.instructionsRetired;
+			this.output = output;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %s at %04x, a=%04x b=%04x c=%04x d=%04x e=%04x fp=%04x sp=%04x flags=%x, %d cycles, %d instructions, %d chars output",
+					name, reason, ip, a, b, c, d, e, fp, sp, flags, cycleCount, instructionsRetired, output.length());
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("Usage: EmulatorPool <image> <cycles> <input file | count>...");
+			System.exit(2);
+		}
+
+		MemoryImage image = ImageLoader.loadImage(new File(args[0]));
+		long maxCycles = Long.parseLong(args[1]);
+
+		List<Job> jobs = new ArrayList<>();
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].matches("\\d+")) {
+				for (int j = Integer.parseInt(args[i]); j > 0; j--)
+					jobs.add(new Job("#" + jobs.size(), image, new byte[0], maxCycles, false));
+			} else {
+				jobs.add(new Job(args[i], image, Files.readAllBytes(new File(args[i]).toPath()), maxCycles, false));
+			}
+		}
+
+		long start = System.nanoTime();
+		try (EmulatorPool pool = new EmulatorPool()) {
+			for (Result result : pool.runAll(jobs))
+				System.out.println(result);
+		}
+
+		System.out.printf("%d jobs in %.3f s\n", jobs.size(), (System.nanoTime() - start) / 1e9);
+	}
+}
@@ -0,0 +1,132 @@
+package emulator;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.util.Map;
+
+class FlightEvents {
+
+	static final boolean ENABLED = Boolean.getBoolean("alphaq.jfr");
+
+	@Name("alphaq.Run")
+	@Label("Emulator Run")
+	@Category({"AlphaQ", "Emulator"})
+	@Enabled(false)
+	@StackTrace(false)
+	static class Run extends Event {
+		@Label("Stop Reason")
+		String stopReason;
+
+		@Label("Instructions")
+		long instructions;
+
+		@Label("Cycles")
+		long cycles;
+
+		@Label("Start Address")
+		int startAddress;
+
+		@Label("Start Symbol")
+		String startSymbol;
+
+		@Label("Stop Address")
+		int stopAddress;
+
+		@Label("Stop Symbol")
+		String stopSymbol;
+	}
+
+	@Name("alphaq.BreakpointHit")
+	@Label("Breakpoint Hit")
+	@Category({"AlphaQ", "Emulator"})
+	@Enabled(false)
+	@StackTrace(false)
+	static class BreakpointHit extends Event {
+		@Label("Breakpoint")
+		String breakpoint;
+
+		@Label("Address")
+		int address;
+
+		@Label("Symbol")
+		String symbol;
+
+		@Label("Cycle")
+		long cycle;
+	}
+
+	@Name("alphaq.ImageLoad")
+	@Label("Image Load")
+	@Category({"AlphaQ", "Loader"})
+	@Enabled(false)
+	@StackTrace(false)
+	static class ImageLoad extends Event {
+		@Label("Path")
+		String path;
+
+		@Label("Offset")
+		int offset;
+
+		@Label("Size")
+		@DataAmount
+		long size;
+
+		@Label("Cached")
+		boolean cached;
+	}
+
+	@Name("alphaq.SymbolLoad")
+	@Label("Symbol Load")
+	@Category({"AlphaQ", "Loader"})
+	@Enabled(false)
+	@StackTrace(false)
+	static class SymbolLoad extends Event {
+		@Label("Path")
+		String path;
+
+		@Label("Symbols")
+		int symbols;
+	}
+
+	@Name("alphaq.JitCompile")
+	@Label("JIT Compilation")
+	@Category({"AlphaQ", "JIT"})
+	@Enabled(false)
+	@StackTrace(false)
+	static class JitCompile extends Event {
+		@Label("Start Address")
+		int startAddress;
+
+		@Label("End Address")
+		int endAddress;
+
+		@Label("Symbol")
+		String symbol;
+
+		@Label("Class Size")
+		@DataAmount
+		int classSize;
+
+		@Label("Succeeded")
+		boolean succeeded;
+	}
+
+	static String symbolAt(SymbolIndex symbols, int address) {
+		if (symbols == null)
+			return null;
+
+		Map.Entry<Integer, String> symbol = symbols.floor(address);
+		if (symbol == null)
+			return null;
+		if (symbol.getKey() == address)
+			return symbol.getValue();
+
+		return String.format("%s+%x", symbol.getValue(), address - symbol.getKey());
+	}
+}
@@ -0,0 +1,170 @@
+package emulator;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+public class Headless {
+
+	private static void usage() {
+		System.err.println("Usage: Headless <image> [-symbols file] [-input file] [-output file] [-cycles n] [-instructions n] [-jit] [-trace file] [-trace-registers] [-profile n] [-collapsed file]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1)
+			usage();
+
+		File image = new File(args[0]);
+		File symbols = null;
+		File inputFile = null;
+		File outputFile = null;
+		long maxCycles = Long.MAX_VALUE;
+		long maxInstructions = Long.MAX_VALUE;
+		boolean useJit = false;
+		File traceFile = null;
+		boolean traceRegisters = false;
+		int profileLimit = 0;
+		File collapsedFile = null;
+
+		try {
+			for (int i = 1; i < args.length; i++) {
+				if (args[i].equals("-jit")) {
+					useJit = true;
+				} else if (args[i].equals("-trace-registers")) {
+					traceRegisters = true;
+				} else if (i + 1 >= args.length) {
+					usage();
+				} else if (args[i].equals("-symbols")) {
+					symbols = new File(args[++i]);
+				} else if (args[i].equals("-input")) {
+					inputFile = new File(args[++i]);
+				} else if (args[i].equals("-output")) {
+					outputFile = new File(args[++i]);
+				} else if (args[i].equals("-cycles")) {
+					maxCycles = Long.parseLong(args[++i]);
+				} else if (args[i].equals("-instructions")) {
+					maxInstructions = Long.parseLong(args[++i]);
+				} else if (args[i].equals("-trace")) {
+					traceFile = new File(args[++i]);
+				} else if (args[i].equals("-profile")) {
+					profileLimit = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-collapsed")) {
+					collapsedFile = new File(args[++i]);
+				} else {
+					usage();
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Expected number for limit");
+			System.exit(2);
+		}
+
+		Emulator emulator = new Emulator();
+		SymbolIndex symbolIndex = new SymbolIndex();
+		emulator.symbols = symbolIndex;
+		byte[] input = new byte[0];
+
+		try {
+			ImageLoader.loadImage(image, emulator);
+
+			if (symbols != null)
+				ImageLoader.loadSymbols(symbols, symbolIndex::add);
+			if (inputFile != null)
+				input = Files.readAllBytes(inputFile.toPath());
+		} catch (IOException e) {
+			System.err.println("Failed to read file: " + e.getMessage());
+			System.exit(2);
+		}
+
+		IdleDetector idle = new IdleDetector(emulator, 0);
+
+		byte[] inputBytes = input;
+		int[] inputPosition = {0};
+		emulator.input = () -> {
+			if (inputPosition[0] >= inputBytes.length)
+				return 0;
+
+			idle.inputChanged();
+			return inputBytes[inputPosition[0]++] & 0xFF;
+		};
+
+		if (useJit)
+			new BlockJit(emulator);
+
+		Profiler profiler = profileLimit > 0 ? new Profiler(emulator) : null;
+		CallStack callStack = collapsedFile != null ? new CallStack(emulator) : null;
+
+		TraceWriter trace = null;
+		if (traceFile != null) {
+			try {
+				trace = new TraceWriter(emulator, traceFile, traceRegisters);
+			} catch (IOException e) {
+				System.err.println("Failed to open trace file: " + e.getMessage());
+				System.exit(2);
+			}
+		}
+
+		StopReason reason;
+		long start = System.nanoTime();
+
+		try (OutputStream out = outputFile == null ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(outputFile);
+			 PrintStream output = new PrintStream(new BufferedOutputStream(out, 65536), false)) {
+			do {
+				short previousOut = emulator.out;
+				long remaining = Math.min(maxCycles - emulator.cycleCount, maxInstructions - emulator.instructionsRetired);
+
+				reason = remaining > 0 ? emulator.run(remaining, StopReason.OUTPUT.mask) : StopReason.CYCLE_BUDGET;
+
+				if (previousOut == 0 && emulator.out != 0)
+					output.print((char) emulator.out);
+			} while (reason == StopReason.OUTPUT || reason == StopReason.CYCLE_BUDGET &&
+					emulator.cycleCount < maxCycles && emulator.instructionsRetired < maxInstructions);
+		} catch (IOException e) {
+			System.err.println("Failed to write output: " + e.getMessage());
+			System.exit(2);
+			return;
+		}
+
+		long elapsed = System.nanoTime() - start;
+
+		if (trace != null) {
+			try {
+				trace.close();
+			} catch (IOException e) {
+				System.err.println("Failed to write trace: " + e.getMessage());
+			}
+		}
+		String ip = symbolIndex.get(Short.toUnsignedInt(emulator.ip));
+
+		System.err.printf("Stopped: %s at %s\n", reason, ip == null ? String.format("%04x", emulator.ip) : String.format("%s(%04x)", ip, emulator.ip));
+		System.err.printf(
+				"| a: %04x |  b: %04x |  c: %04x |  d: %04x |\n" +
+						"| e: %04x | fp: %04x | sp: %04x | ip: %04x |\n",
+				emulator.a, emulator.b, emulator.c, emulator.d, emulator.e, emulator.fp, emulator.sp, emulator.ip);
+		System.err.printf(
+				"tpat: %04x fpat: %04x out: %04x\n" +
+						"zf: %d sf: %d cf: %d of: %d\n",
+				emulator.tpat, emulator.fpat, emulator.out,
+				emulator.zf() ? 1 : 0, emulator.sf() ? 1 : 0, emulator.cf() ? 1 : 0, emulator.of() ? 1 : 0);
+		System.err.printf("%d cycles, %d instructions in %.3f s\n", emulator.cycleCount, emulator.instructionsRetired, elapsed / 1e9);
+
+		if (profiler != null)
+			profiler.print(System.err, symbolIndex, profileLimit);
+
+		if (callStack != null) {
+			try (PrintStream collapsed = new PrintStream(new FileOutputStream(collapsedFile))) {
+				callStack.writeCollapsed(collapsed, symbolIndex);
+			} catch (IOException e) {
+				System.err.println("Failed to write collapsed stacks: " + e.getMessage());
+			}
+		}
+
+		System.exit(reason == StopReason.INVALID_INSTRUCTION ? 1 : 0);
+	}
+}
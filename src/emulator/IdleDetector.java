@@ -0,0 +1,121 @@
+package emulator;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+public class IdleDetector {
+
+	private static final int MAX_LOOP_CYCLES = 64;
+	private static final long PARK_QUANTUM_CYCLES = 1 << 20;
+
+	private final Emulator emulator;
+	private final long parkNanos;
+
+	private volatile long inputEvents = 0;
+	private volatile Thread waiter;
+
+	private int head = -1;
+	private long headCycles;
+	private long headRetired;
+	private long headStores;
+	private long headInputEvents;
+	private final short[] headState = new short[12];
+	private final short[] state = new short[12];
+
+	private long stores = 0;
+
+	public long idleCycles = 0;
+	public long parks = 0;
+
+	public IdleDetector(Emulator emulator, long parkMillis) {
+		this.emulator = emulator;
+		this.parkNanos = parkMillis * 1000000;
+		emulator.idle = this;
+	}
+
+	public void detach() {
+		if (emulator.idle == this)
+			emulator.idle = null;
+	}
+
+	public void inputChanged() {
+		inputEvents++;
+		wake();
+	}
+
+	void wake() {
+		Thread thread = waiter;
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+
+	void stored() {
+		stores++;
+	}
+
+	void reset() {
+		head = -1;
+	}
+
+	void observe(long cycleLimit) {
+		if (!emulator.previousInstructionWasTaken || Short.toUnsignedInt(emulator.ip) > Short.toUnsignedInt(emulator.previousAddress))
+			return;
+
+		int address = Short.toUnsignedInt(emulator.ip);
+		capture(state);
+
+		if (address == head && stores == headStores && inputEvents == headInputEvents &&
+				emulator.cycleCount - headCycles <= MAX_LOOP_CYCLES && Arrays.equals(state, headState)) {
+			fastForward(cycleLimit);
+		}
+
+		head = address;
+		headCycles = emulator.cycleCount;
+		headRetired = emulator.instructionsRetired;
+		headStores = stores;
+		headInputEvents = inputEvents;
+		System.arraycopy(state, 0, headState, 0, state.length);
+	}
+
+	private void fastForward(long cycleLimit) {
+		long period = emulator.cycleCount - headCycles;
+		long instructions = emulator.instructionsRetired - headRetired;
+		long iterations = (cycleLimit - emulator.cycleCount) / period;
+
+		if (parkNanos > 0)
+			iterations = Math.min(iterations, Math.max(1, PARK_QUANTUM_CYCLES / period));
+
+		if (iterations <= 0)
+			return;
+
+		emulator.cycleCount += iterations * period;
+		emulator.instructionsRetired += iterations * instructions;
+		idleCycles += iterations * period;
+
+		if (parkNanos > 0) {
+			waiter = Thread.currentThread();
+
+			if (inputEvents == headInputEvents && !emulator.isCancelRequested()) {
+				parks++;
+				LockSupport.parkNanos(this, parkNanos);
+			}
+
+			waiter = null;
+		}
+	}
+
+	private void capture(short[] state) {
+		state[0] = emulator.a;
+		state[1] = emulator.b;
+		state[2] = emulator.c;
+		state[3] = emulator.d;
+		state[4] = emulator.e;
+		state[5] = emulator.fp;
+		state[6] = emulator.sp;
+		state[7] = emulator.out;
+		state[8] = emulator.getFlags();
+		state[9] = emulator.tpat;
+		state[10] = emulator.fpat;
+		state[11] = emulator.previousInstructionWord;
+	}
+}
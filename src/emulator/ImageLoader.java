@@ -0,0 +1,186 @@
+package emulator;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+public class ImageLoader {
+
+	public static final int MAX_IMAGE_SIZE = 65536 * 2;
+
+	private static final Pattern SYMBOL_PATTERN = Pattern.compile("^([^:]+)\\s*:\\s*(\\d+)$");
+	private static final MemoryImage EMPTY = MemoryImage.of(new short[65536]);
+	private static final int CACHE_SIZE = 16;
+
+	private static final LinkedHashMap<String, CachedImage> cache = new LinkedHashMap<String, CachedImage>(CACHE_SIZE, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedImage> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	public static void loadImage(File file, Emulator emulator) throws IOException {
+		emulator.setMemory(loadImage(file));
+	}
+
+	public static void loadImage(File file, Emulator emulator, int offset) throws IOException {
+		emulator.setMemory(loadImage(file, emulator.shareMemory(), offset));
+	}
+
+	public static MemoryImage loadImage(File file) throws IOException {
+		String key = file.getCanonicalPath();
+
+		FlightEvents.ImageLoad event = null;
+		if (FlightEvents.ENABLED) {
+			event = new FlightEvents.ImageLoad();
+			event.begin();
+		}
+
+		ByteBuffer bytes = readBytes(file);
+		int length = bytes.limit();
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes.duplicate());
+		long checksum = crc.getValue();
+
+		synchronized (cache) {
+			CachedImage cached = cache.get(key);
+			if (cached != null && cached.length == length && cached.checksum == checksum) {
+				loaded(event, file, 0, length, true);
+				return cached.image;
+			}
+		}
+
+		MemoryImage image = readImage(bytes, EMPTY, 0);
+
+		synchronized (cache) {
+			cache.put(key, new CachedImage(image, length, checksum));
+		}
+
+		loaded(event, file, 0, length, false);
+		return image;
+	}
+
+	public static MemoryImage loadImage(File file, MemoryImage base, int offset) throws IOException {
+		FlightEvents.ImageLoad event = null;
+		if (FlightEvents.ENABLED) {
+			event = new FlightEvents.ImageLoad();
+			event.begin();
+		}
+
+		MemoryImage image = readImage(readBytes(file), base, offset);
+
+		loaded(event, file, offset, file.length(), false);
+		return image;
+	}
+
+	private static void loaded(FlightEvents.ImageLoad event, File file, int offset, long size, boolean cached) {
+		if (event == null)
+			return;
+
+		event.end();
+
+		if (event.shouldCommit()) {
+			event.path = file.getPath();
+			event.offset = offset;
+			event.size = size;
+			event.cached = cached;
+			event.commit();
+		}
+	}
+
+	private static MemoryImage readImage(ByteBuffer bytes, MemoryImage base, int offset) throws IOException {
+		ShortBuffer words = bytes.duplicate().clear().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+
+		if (offset < 0 || offset + words.remaining() > 65536)
+			throw new IOException("Image does not fit at offset " + Integer.toHexString(offset));
+
+		MemoryPage[] pages = base.pages.clone();
+		int end = offset + words.remaining();
+
+		for (int address = offset; address < end; ) {
+			int index = address >>> MemoryPage.BITS;
+			int start = address & MemoryPage.MASK;
+			int count = Math.min(MemoryPage.SIZE - start, end - address);
+
+			MemoryPage page = pages[index].copy();
+			words.get(page.words, start, count);
+			Arrays.fill(page.decoded, start, start + count, 0);
+			pages[index] = page;
+
+			address += count;
+		}
+
+		return new MemoryImage(pages);
+	}
+
+	private static ByteBuffer readBytes(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > MAX_IMAGE_SIZE)
+				throw new IOException("File too large");
+
+			ByteBuffer buffer = ByteBuffer.allocate((int) (size + 1) & ~1);
+			while (buffer.position() < size && channel.read(buffer) >= 0);
+
+			return buffer.flip();
+		}
+	}
+
+	private static class CachedImage {
+		final MemoryImage image;
+		final int length;
+		final long checksum;
+
+		CachedImage(MemoryImage image, int length, long checksum) {
+			this.image = image;
+			this.length = length;
+			this.checksum = checksum;
+		}
+	}
+
+	public static void loadSymbols(File file, BiConsumer<String, Integer> symbols) throws FileNotFoundException {
+		FlightEvents.SymbolLoad event = null;
+		if (FlightEvents.ENABLED) {
+			event = new FlightEvents.SymbolLoad();
+			event.begin();
+		}
+		int count = 0;
+
+		try (Scanner fileScanner = new Scanner(file)) {
+			while (fileScanner.hasNextLine()) {
+				String symbolEntry = fileScanner.nextLine().trim();
+				Matcher symbol = SYMBOL_PATTERN.matcher(symbolEntry);
+
+				if (symbol.matches()) {
+					symbols.accept(symbol.group(1), Integer.parseInt(symbol.group(2)));
+					count++;
+				}
+			}
+		}
+
+		if (event == null)
+			return;
+
+		event.end();
+
+		if (event.shouldCommit()) {
+			event.path = file.getPath();
+			event.symbols = count;
+			event.commit();
+		}
+	}
+}
@@ -18,23 +18,43 @@ public class Instruction {
 	}
 
 	public int getOpcode() {
-		return (instruction >>> 10) & 0x3F;
+		return getOpcode(instruction);
 	}
 
 	public int getArg1() {
-		return (instruction >>> 7) & 0x7;
+		return getArg1(instruction);
 	}
 
 	public int getArg2() {
-		return (instruction >>> 4) & 0x7;
+		return getArg2(instruction);
 	}
 
 	public int getCondition() {
-		return instruction & 0xF;
+		return getCondition(instruction);
 	}
 
 	public boolean hasImmediate() {
-		return getArg2() == 0x7;
+		return hasImmediate(instruction);
+	}
+
+	public static int getOpcode(short instruction) {
+		return (instruction >>> 10) & 0x3F;
+	}
+
+	public static int getArg1(short instruction) {
+		return (instruction >>> 7) & 0x7;
+	}
+
+	public static int getArg2(short instruction) {
+		return (instruction >>> 4) & 0x7;
+	}
+
+	public static int getCondition(short instruction) {
+		return instruction & 0xF;
+	}
+
+	public static boolean hasImmediate(short instruction) {
+		return getArg2(instruction) == 0x7;
 	}
 
 	public String getArg1Name() {
@@ -144,7 +164,11 @@ public class Instruction {
 	}
 
 	public String getOpcodeName() {
-		switch (getOpcode()) {
+		return getOpcodeName(getOpcode());
+	}
+
+	public static String getOpcodeName(int opcode) {
+		switch (opcode) {
 			case 0x01:
 			case 0x04:
 			case 0x05:
@@ -237,7 +261,11 @@ public class Instruction {
 	public static final String INVALID_OPCODE = "INVALID OPCODE";
 
 	public boolean isInvalid() {
-		return getOpcodeName().equals(INVALID_OPCODE);
+		return isInvalid(instruction);
+	}
+
+	public static boolean isInvalid(short instruction) {
+		return getOpcodeName(getOpcode(instruction)).equals(INVALID_OPCODE);
 	}
 
 	@Override
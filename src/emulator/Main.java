@@ -8,32 +8,47 @@ import javax.swing.*;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.locks.LockSupport;
 
 public class Main {
 
-	private static final Object runLock = new Object();
+	private static final long PAUSE_RETRY_NANOS = 1000000;
+	private static final CommandChannel<RunCommand> commands = new CommandChannel<>();
 	private static final Set<String> validOnStopCommands = Set.of(
 			"pi", "px", "ps", "pb", "pu",
 			"d", "df",
 			"sep", "clear", "cmd");
+	private static final Set<String> historyDiscardingCommands = Set.of(
+			"load-all", "load-ram", "load-ram-at", "load-asm", "set", "reset", "clr-ram", "load-state");
 	private static HashMap<String, Integer> symbolTable = new LinkedHashMap<>();
-	private static Set<Breakpoint> breakpoints = new HashSet<>();
+	private static SymbolIndex symbolIndex = new SymbolIndex();
 	private static Emulator emulator = new Emulator();
-	private static volatile boolean running = false;
+	private static Breakpoints breakpoints = new Breakpoints(emulator);
+	private static BlockJit jit;
+	private static UndoLog undoLog;
+	private static TraceWriter trace;
+	private static Profiler profiler;
+	private static CallStack callStack;
+	private static IdleDetector idle;
+	private static EmulatorMetrics metrics = new EmulatorMetrics(emulator);
+	private static HashMap<String, Snapshot> savedStates = new HashMap<>();
+	private static volatile boolean pauseRequested = false;
 	private static Thread runningThread;
-	private static byte[] buffer = new byte[131072];
+	private static volatile Thread commandThread;
+	private static volatile StopState stopState = new StopState(0, null, (short) 0, 0);
+	private static long commandSequence = 0;
 	private static short input = 0;
 	private static Collection<String[]> onStopCommands = new ArrayList<>();
-	private static Pattern symbolPattern;
 	private static JFrame keyboardInput;
 	private static boolean enableTerminal = false;
+	private static TerminalOutput terminal = new TerminalOutput(10);
 	private static short[] keyPressed = new short[] {0};
 	private static short emulatorPreviousOut = 0;
 
@@ -47,86 +62,117 @@ public class Main {
 		return input;
 	}
 
+	private static void inputChanged() {
+		if (idle != null)
+			idle.inputChanged();
+	}
+
 	public static String getAddressString(int address) {
 		String symbol = findSymbolByAddress(address);
 		return symbol == null ? String.format("%04x", address) : String.format("%s(%04x)", symbol, address);
 	}
 
 	public static String findSymbolByAddress(int address) {
-		for (Map.Entry<String, Integer> entry : symbolTable.entrySet()) {
-			if (address == entry.getValue())
-				return entry.getKey();
-		}
-
-		return null;
-	}
-
-	private static Breakpoint checkBreakpoints() {
-		for (Breakpoint breakpoint : breakpoints) {
-			if (breakpoint.name.equals("on-out")) {
-				if (emulator.outputTripped)
-					return breakpoint;
-			} else if (breakpoint.name.equals("@sout")) {
-				if (emulator.previousInstruction != null && emulator.previousInstruction.getOpcode() == 0x06 &&
-						emulator.previousInstruction.getArg1() == 0x07 && emulator.previousInstructionWasTaken &&
-						Short.toUnsignedInt(emulator.sp) < Short.toUnsignedInt(breakpoint.value)) {
-					return breakpoint;
-				}
-			} else if (emulator.get(breakpoint.name) == breakpoint.value) {
-				return breakpoint;
-			}
-		}
-
-		return null;
+		return symbolIndex.get(address);
 	}
 
 	private static void runAsync() {
 		while (true) {
+			RunCommand command = commands.receive();
+			StopReason reason = null;
+			boolean running = command.running;
+
+			emulator.clearCancel();
+
 			try {
-				try {
-					synchronized (runLock) {
-						runLock.wait();
-					}
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+				boolean temporaryAdded = command.breakpoint != null && breakpoints.add(command.breakpoint);
 
 				do {
 					emulatorPreviousOut = emulator.out;
-					emulator.executeInstruction();
 
+					int stopMask = 0;
+					if (enableTerminal)
+						stopMask |= StopReason.OUTPUT.mask;
+					if (!breakpoints.isEmpty())
+						stopMask |= StopReason.BREAKPOINT.mask;
+
+					reason = emulator.run(running ? Long.MAX_VALUE : 1, stopMask);
 
 					if (enableTerminal) {
 						if (emulatorPreviousOut == 0 && emulator.out != 0) {
-							System.out.print((char) emulator.out);
+							terminal.write((char) emulator.out);
 						}
 					}
 
 					if (emulator.error) {
+						terminal.flush();
 						System.err.printf("Error: Invalid instruction at %04x\nPrevious instruction -> %04x: %s\n",
-								emulator.ip, emulator.previousInstruction.address, emulator.previousInstruction.toString());
+								emulator.ip, emulator.previousAddress, emulator.getPreviousInstruction().toString());
 						running = false;
 					}
 
-					Breakpoint breakpoint = checkBreakpoints();
+					Breakpoint breakpoint = breakpoints.find();
 					if (breakpoint != null) {
 						running = false;
 
+						terminal.flush();
 						System.out.printf("Breakpoint reached:\n%s\n", breakpoint.toString());
 					}
-				} while (running);
+
+					String watchpoint = breakpoints.takeWatchpointHit();
+					if (watchpoint != null) {
+						running = false;
+
+						terminal.flush();
+						System.out.printf("Watchpoint triggered:\n%s\n", watchpoint);
+					}
+				} while (running && !pauseRequested);
+
+				if (temporaryAdded)
+					breakpoints.remove(command.breakpoint);
+
+				terminal.flush();
 
 				for (String[] commands : onStopCommands) {
 					executeCommand(commands, null);
 				}
-
-				synchronized (runLock) {
-					runLock.notify();
-				}
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
+
+			stopState = new StopState(command.sequence, reason, emulator.ip, emulator.cycleCount);
+			LockSupport.unpark(commandThread);
+		}
+	}
+
+	private static long submit(Breakpoint temporary, boolean running) {
+		commandThread = Thread.currentThread();
+
+		RunCommand command = new RunCommand(++commandSequence, temporary, running);
+		commands.send(command);
+		return command.sequence;
+	}
+
+	private static boolean awaitStop(long sequence, long timeoutNanos) {
+		long deadline = System.nanoTime() + timeoutNanos;
+
+		while (stopState.sequence < sequence) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				return false;
+
+			LockSupport.parkNanos(remaining);
 		}
+
+		return true;
+	}
+
+	private static void step(Breakpoint temporary, boolean running) {
+		awaitStop(submit(temporary, running), Long.MAX_VALUE);
+	}
+
+	private static boolean isStopped() {
+		return stopState.sequence == commandSequence;
 	}
 
 	private static String formatShortX(short value) {
@@ -150,7 +196,25 @@ public class Main {
 
 	}
 
+	private static int parseAddress(String text) {
+		int address = findSymbol(text);
+
+		if (address == -1 && text.matches("[0-9A-Fa-f]+")) {
+			try {
+				address = Integer.parseInt(text, 16);
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		return address < 65536 ? address : -1;
+	}
+
 	private static void loadRam(String fullName) {
+		loadRam(fullName, -1);
+	}
+
+	private static void loadRam(String fullName, int offset) {
 		File file = new File(fullName);
 		if (!file.exists()) {
 			System.err.println(fullName + " doesn't exist");
@@ -158,20 +222,16 @@ public class Main {
 		} else if (file.isDirectory()) {
 			System.err.println(fullName + " is a directory");
 			return;
-		} else if (file.length() > 65536 * 2) {
+		} else if (file.length() > ImageLoader.MAX_IMAGE_SIZE) {
 			System.err.println("File too large");
 			return;
 		}
 
-		try (FileInputStream in = new FileInputStream(file)) {
-			int bytesRead;
-			bytesRead = in.read(buffer, 0, buffer.length);
-			Arrays.fill(emulator.memory, (short) 0);
-
-			for (int i = 0; i < bytesRead; i += 2) {
-				emulator.memory[i >> 1] = (short) ((buffer[i] & 0xFF) | (buffer[i + 1] << Byte.SIZE));
-			}
-
+		try {
+			if (offset < 0)
+				ImageLoader.loadImage(file, emulator);
+			else
+				ImageLoader.loadImage(file, emulator, offset);
 		} catch (IOException e1) {
 			e1.printStackTrace();
 		}
@@ -191,24 +251,24 @@ public class Main {
 			System.out.print("Clear existing symbols? (Y/N) ");
 			String line = scanner.nextLine().trim().toLowerCase();
 
-			if (line.equals("y"))
+			if (line.equals("y")) {
 				symbolTable.clear();
-			else if (!line.equals("n")) {
+				symbolIndex.clear();
+			} else if (!line.equals("n")) {
 				System.err.println("Unexpected response");
 				return;
 			}
 		}
 
-		try (Scanner fileScanner = new Scanner(new File(fullName))) {
-
-			while (fileScanner.hasNextLine()) {
-				String symbolEntry = fileScanner.nextLine().trim();
-				Matcher symbol = symbolPattern.matcher(symbolEntry);
+		try {
+			ImageLoader.loadSymbols(file, (name, address) -> {
+				Integer previous = symbolTable.put(name, address);
 
-				if (symbol.matches()) {
-					symbolTable.put(symbol.group(1), Integer.valueOf(symbol.group(2)));
-				}
-			}
+				if (previous == null)
+					symbolIndex.add(name, address);
+				else if (previous.intValue() != address)
+					symbolIndex.rebuild(symbolTable);
+			});
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		}
@@ -218,24 +278,67 @@ public class Main {
 		if (parts[0].equals("exit")) {
 			return true;
 		} else if (parts[0].equals("pause")) {
-			if (running) {
-				running = false;
-				synchronized (runLock) {
+			if (!isStopped()) {
+				pauseRequested = true;
+
+				do {
+					emulator.cancel();
+				} while (!awaitStop(commandSequence, PAUSE_RETRY_NANOS));
+
+				pauseRequested = false;
+			} else {
+				System.err.println("Not currently running");
+			}
+			return false;
+		} else if (parts[0].equals("status")) {
+			StopState state = stopState;
+
+			if (!isStopped())
+				System.out.println("Running");
+			else if (state.reason == null)
+				System.out.println("Stopped");
+			else
+				System.out.printf("Stopped: %s at %s after %d cycles\n", state.reason, getAddressString(Short.toUnsignedInt(state.ip)), state.cycleCount);
+			return false;
+		} else if (parts[0].equals("stats")) {
+			if (parts.length > 1 && parts[1].equals("opcodes")) {
+				if (!isStopped()) {
+					System.err.println("This command cannot be executed while the emulator is running");
+					return false;
+				}
+
+				metrics.setCountOpcodes(!metrics.isCountingOpcodes());
+				System.out.printf("Opcode counting %s\n", metrics.isCountingOpcodes() ? "enabled" : "disabled");
+			} else if (parts.length > 1 && parts[1].equals("file")) {
+				if (parts.length < 3) {
+					metrics.stopExporter();
+					System.out.println("Metrics export stopped");
+					return false;
+				}
+
+				long interval = 5000;
+				if (parts.length > 3) {
 					try {
-						runLock.wait();
-					} catch (InterruptedException e) {
-						e.printStackTrace();
+						interval = Long.parseLong(parts[3]);
+					} catch (NumberFormatException e) {
+						System.err.println("Expected interval in milliseconds");
+						return false;
 					}
 				}
+
+				metrics.startExporter(new File(parts[2]), interval);
+				System.out.printf("Writing metrics to %s every %d ms\n", parts[2], interval);
 			} else {
-				System.err.println("Not currently running");
+				metrics.print(System.out);
 			}
 			return false;
 		} else if (parts[0].equals("kb")) {
 			keyboardInput.setVisible(!keyboardInput.isVisible());
+			inputChanged();
 			return false;
 		} else if (parts[0].equals("term")) {
 			enableTerminal = !enableTerminal;
+			emulator.cancel();
 			return false;
 		} else if (parts[0].equals("cmd")) {
 			String[] cmd = new String[parts.length + 1];
@@ -256,7 +359,14 @@ public class Main {
 		}
 
 
-		if (!running) {
+		if (Thread.currentThread() == runningThread || isStopped()) {
+			if (historyDiscardingCommands.contains(parts[0])) {
+				if (undoLog != null)
+					undoLog.clear();
+				if (callStack != null)
+					callStack.reset();
+			}
+
 			if (parts[0].equals("load-all")) {
 				if (parts.length < 2) {
 					System.err.println("Expected file name");
@@ -285,6 +395,28 @@ public class Main {
 
 				loadRam(fullName);
 
+				return false;
+			} else if (parts[0].equals("load-ram-at")) {
+				if (parts.length < 3) {
+					System.err.println("Expected address and file name");
+					return false;
+				}
+
+				int offset;
+				try {
+					offset = Integer.parseUnsignedInt(parts[1], 16);
+				} catch (NumberFormatException e) {
+					System.err.println("Expected an address");
+					return false;
+				}
+
+				StringBuilder fullNameBuilder = new StringBuilder(parts[2]);
+				for (int i = 3; i < parts.length; i++) {
+					fullNameBuilder.append(" ").append(parts[i]);
+				}
+
+				loadRam(fullNameBuilder.toString(), offset);
+
 				return false;
 			} else if (parts[0].equals("load-symbols")) {
 				if (parts.length < 2) {
@@ -302,6 +434,7 @@ public class Main {
 				return false;
 			} else if (parts[0].equals("clr-symbols")) {
 				symbolTable.clear();
+				symbolIndex.clear();
 			} else if (parts[0].equals("load-asm")) {
 				if (parts.length < 2) {
 					System.err.println("Expected file name");
@@ -326,8 +459,9 @@ public class Main {
 				try {
 					AlphaQAsm assembler = new AlphaQAsm(file);
 
-					emulator.memory = assembler.getProgram();
+					emulator.setMemory(assembler.getProgram());
 					symbolTable = assembler.getSymbolTable();
+					symbolIndex.rebuild(symbolTable);
 				} catch (IOException e) {
 					System.err.println("Failed to read file");
 					e.printStackTrace();
@@ -393,10 +527,7 @@ public class Main {
 				} else if (parts[1].equals("fpat")) {
 					emulator.fpat = value;
 				} else if (parts[1].equals("flags")) {
-					emulator.zf = (value & 1) != 0;
-					emulator.sf = (value & 2) != 0;
-					emulator.cf = (value & 4) != 0;
-					emulator.of = (value & 8) != 0;
+					emulator.setFlags(value);
 				} else if (parts[1].matches("&[0-9A-Fa-f]+")) {
 					int address = Integer.parseInt(parts[1].substring(1), 16);
 
@@ -405,7 +536,7 @@ public class Main {
 						return false;
 					}
 
-					emulator.memory[address] = value;
+					emulator.store(address, value);
 				} else if (parts[1].startsWith("&")) {
 					int address = findSymbol(parts[1].substring(1));
 
@@ -414,7 +545,7 @@ public class Main {
 						return false;
 					}
 
-					emulator.memory[address] = value;
+					emulator.store(address, value);
 				} else {
 					System.err.println("Unknown value to set");
 				}
@@ -532,7 +663,7 @@ public class Main {
 							return false;
 						}
 
-						breakpoints.remove(new Breakpoint(String.format("%04x", address), value));
+						breakpoints.remove(new Breakpoint(String.format("&%04x", address), value));
 					} catch (NumberFormatException e) {
 						System.err.println("Expected address to be number");
 						return false;
@@ -545,12 +676,66 @@ public class Main {
 						return false;
 					}
 
-					breakpoints.remove(new Breakpoint(String.format("%04x", address), value));
+					breakpoints.remove(new Breakpoint(String.format("&%04x", address), value));
 				} else {
 					System.err.println("Invalid break point name");
 				}
 			} else if (parts[0].equals("clr-bp")) {
 				breakpoints.clear();
+			} else if (parts[0].equals("wp")) {
+				if (parts.length < 3) {
+					System.err.println("Expected watchpoint type and address");
+					return false;
+				}
+
+				int type = Watchpoint.parseType(parts[1]);
+				if (type <= 0) {
+					System.err.println("Expected watchpoint type made of r, w and c");
+					return false;
+				}
+
+				int start = parseAddress(parts[2].startsWith("&") ? parts[2].substring(1) : parts[2]);
+				if (start == -1) {
+					System.err.println("Expected address");
+					return false;
+				}
+
+				int end = start;
+				if (parts.length > 3) {
+					if (parts[3].startsWith("+")) {
+						end = parseAddress(parts[3].substring(1));
+						end = end <= 0 ? -1 : start + end - 1;
+					} else {
+						end = parseAddress(parts[3].startsWith("&") ? parts[3].substring(1) : parts[3]);
+					}
+
+					if (end < start || end >= 65536) {
+						System.err.println("Invalid end address");
+						return false;
+					}
+				}
+
+				breakpoints.addWatchpoint(new Watchpoint(start, end, type));
+			} else if (parts[0].equals("wps")) {
+				List<Watchpoint> watchpoints = breakpoints.getWatchpoints();
+
+				for (int i = 0; i < watchpoints.size(); i++) {
+					System.out.printf("%d: %s\n", i, watchpoints.get(i));
+				}
+			} else if (parts[0].equals("-wp")) {
+				if (parts.length < 2) {
+					System.err.println("Expected watchpoint number");
+					return false;
+				}
+
+				try {
+					if (!breakpoints.removeWatchpoint(Integer.parseInt(parts[1])))
+						System.err.println("Watchpoint not found");
+				} catch (NumberFormatException e) {
+					System.err.println("Expected watchpoint number");
+				}
+			} else if (parts[0].equals("clr-wp")) {
+				breakpoints.clearWatchpoints();
 			} else if (parts[0].equals("d")) {
 				if (parts.length < 3) {
 					System.err.println("Expected number of instructions and address");
@@ -574,7 +759,7 @@ public class Main {
 				} else if (parts[1].equals("ip")) {
 					address = emulator.ip;
 				} else if (parts[1].equals("prev")) {
-					address = Short.toUnsignedInt(emulator.previousInstruction.address);
+					address = Short.toUnsignedInt(emulator.previousAddress);
 				} else {
 					address = findSymbol(parts[1]);
 					if (address == -1) {
@@ -641,7 +826,7 @@ public class Main {
 				} else if (parts[1].equals("ip")) {
 					address = emulator.ip;
 				} else if (parts[1].equals("prev")) {
-					address = Short.toUnsignedInt(emulator.previousInstruction.address);
+					address = Short.toUnsignedInt(emulator.previousAddress);
 				} else {
 					address = findSymbol(parts[1]);
 					if (address == -1) {
@@ -880,35 +1065,16 @@ public class Main {
 					return false;
 				}
 
-				while (address < 65536 && emulator.memory[address] != 0) {
-					System.out.print((char) emulator.memory[address]);
+				while (address < 65536 && emulator.load(address) != 0) {
+					System.out.print((char) emulator.load(address));
 					address++;
 				}
 			} else if (parts[0].equals("s")) {
-				synchronized (runLock) {
-					runLock.notify();
-					try {
-						runLock.wait();
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-				}
+				step(null, false);
 			} else if (parts[0].equals("so")) {
 				Breakpoint bp = new Breakpoint("ip", (short) (emulator.ip + emulator.instructionAt(emulator.ip).length()));
 
-				boolean needToRemove = breakpoints.add(bp);
-				running = true;
-
-				synchronized (runLock) {
-					runLock.notify();
-					try {
-						runLock.wait();
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-				}
-
-				if (needToRemove) breakpoints.remove(bp);
+				step(bp, true);
 			} else if (parts[0].equals("rt")) {
 				if (parts.length < 2) {
 					System.err.println("Expected address to run to");
@@ -932,41 +1098,13 @@ public class Main {
 
 				Breakpoint bp = new Breakpoint("ip", (short) address);
 
-				boolean needToRemove = breakpoints.add(bp);
-				running = true;
-
-				synchronized (runLock) {
-					runLock.notify();
-					try {
-						runLock.wait();
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-				}
-
-				if (needToRemove) breakpoints.remove(bp);
+				step(bp, true);
 			} else if (parts[0].equals("sout")) {
 				Breakpoint bp = new Breakpoint("@sout", emulator.sp);
 
-				boolean needToRemove = breakpoints.add(bp);
-				running = true;
-
-				synchronized (runLock) {
-					runLock.notify();
-					try {
-						runLock.wait();
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-				}
-
-				if (needToRemove) breakpoints.remove(bp);
+				step(bp, true);
 			} else if (parts[0].equals("run")) {
-				running = true;
-
-				synchronized (runLock) {
-					runLock.notify();
-				}
+				submit(null, true);
 			} else if (parts[0].equals("symbols")) {
 				for (Map.Entry<String, Integer> symbol : symbolTable.entrySet()) {
 					System.out.printf("%s: %04x; %s\n", symbol.getKey(), symbol.getValue(), emulator.instructionAt(symbol.getValue()));
@@ -1016,20 +1154,12 @@ public class Main {
 					return false;
 				}
 
-				String symbolBefore = null;
-				int symbolBeforeAddress = Integer.MIN_VALUE;
-
-				for (Map.Entry<String, Integer> symbol : symbolTable.entrySet()) {
-					if (symbol.getValue() < num && num > symbolBeforeAddress) {
-						symbolBefore = symbol.getKey();
-						symbolBeforeAddress = symbol.getValue();
-					}
-				}
+				Map.Entry<Integer, String> symbolBefore = symbolIndex.floor(num - 1);
 
 				if (symbolBefore == null)
 					System.out.println("Not found");
 				else
-					System.out.printf("%s: %04x; %s\n", symbolBefore, symbolBeforeAddress, emulator.instructionAt(symbolBeforeAddress));
+					System.out.printf("%s: %04x; %s\n", symbolBefore.getValue(), symbolBefore.getKey(), emulator.instructionAt(symbolBefore.getKey()));
 			} else if (parts[0].equals("reset")) {
 				emulator.resetState();
 				emulatorPreviousOut = 0;
@@ -1067,6 +1197,293 @@ public class Main {
 				System.out.println("------------------------------------------------");
 			} else if (parts[0].equals("cycles")) {
 				System.out.println(emulator.cycleCount);
+			} else if (parts[0].equals("save-state")) {
+				if (parts.length < 2) {
+					System.err.println("Expected state name");
+					return false;
+				}
+
+				savedStates.put(parts[1], emulator.snapshot());
+			} else if (parts[0].equals("load-state")) {
+				if (parts.length < 2) {
+					System.err.println("Expected state name");
+					return false;
+				}
+
+				Snapshot snapshot = savedStates.get(parts[1]);
+
+				if (snapshot == null)
+					System.err.println("State not found");
+				else
+					emulator.restore(snapshot);
+			} else if (parts[0].equals("states")) {
+				for (Map.Entry<String, Snapshot> state : savedStates.entrySet()) {
+					System.out.printf("%s: %d cycles\n", state.getKey(), state.getValue().getCycleCount());
+				}
+			} else if (parts[0].equals("term-out")) {
+				if (parts.length < 2) {
+					System.err.println("Expected file name or stdout");
+					return false;
+				}
+
+				StringBuilder fullNameBuilder = new StringBuilder(parts[1]);
+				for (int i = 2; i < parts.length; i++) {
+					fullNameBuilder.append(" ").append(parts[i]);
+				}
+				String fullName = fullNameBuilder.toString();
+
+				try {
+					if (fullName.equals("stdout"))
+						terminal.setFile(null);
+					else
+						terminal.setFile(FileChannel.open(new File(fullName).toPath(), StandardOpenOption.CREATE,
+								StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+				} catch (IOException e) {
+					System.err.println("Failed to open file");
+					e.printStackTrace();
+				}
+			} else if (parts[0].equals("term-flush")) {
+				if (parts.length < 2) {
+					System.out.printf("%d ms\n", terminal.getFlushInterval());
+					return false;
+				}
+
+				try {
+					terminal.setFlushInterval(Long.parseLong(parts[1]));
+				} catch (NumberFormatException e) {
+					System.err.println("Expected flush interval in milliseconds");
+				}
+			} else if (parts[0].equals("jit")) {
+				if (jit == null) {
+					jit = new BlockJit(emulator);
+					System.out.println("JIT enabled");
+				} else {
+					jit.detach();
+					jit = null;
+					System.out.println("JIT disabled");
+				}
+			} else if (parts[0].equals("undo")) {
+				if (undoLog != null) {
+					undoLog.detach();
+					undoLog = null;
+					System.out.println("Undo log disabled");
+					return false;
+				}
+
+				int megabytes = 16;
+				if (parts.length > 1) {
+					try {
+						megabytes = Integer.parseInt(parts[1]);
+					} catch (NumberFormatException e) {
+						System.err.println("Expected undo log size in megabytes");
+						return false;
+					}
+				}
+
+				if (megabytes < 1 || megabytes > 1024) {
+					System.err.println("Undo log size must be between 1 and 1024 MB");
+					return false;
+				}
+
+				undoLog = new UndoLog(emulator, megabytes << 20, 100000);
+				System.out.printf("Undo log enabled, %d MB\n", megabytes);
+			} else if (parts[0].equals("rs") || parts[0].equals("rsout") || parts[0].equals("rc")) {
+				if (undoLog == null) {
+					System.err.println("Undo log is not enabled");
+					return false;
+				}
+
+				if (parts[0].equals("rs")) {
+					long count = 1;
+					if (parts.length > 1) {
+						try {
+							count = Long.parseLong(parts[1]);
+						} catch (NumberFormatException e) {
+							System.err.println("Expected instruction count");
+							return false;
+						}
+					}
+
+					if (undoLog.stepBack(count) < count)
+						System.out.println("Reached start of undo history");
+				} else if (parts[0].equals("rsout")) {
+					int stackPointer = Short.toUnsignedInt(emulator.sp);
+
+					while (true) {
+						short instruction = emulator.previousInstructionWord;
+						int returnSlot = -1;
+
+						if (emulator.previousInstructionWasTaken && Instruction.getArg1(instruction) == 0x07) {
+							if (Instruction.getOpcode(instruction) == 0x07)
+								returnSlot = Short.toUnsignedInt((short) (emulator.sp - 1));
+							else if (Instruction.getOpcode(instruction) == 0x12)
+								returnSlot = Short.toUnsignedInt((short) (emulator.sp + emulator.getArg2(Instruction.getArg2(instruction), emulator.previousImmediate)));
+						}
+
+						if (!undoLog.stepBack()) {
+							System.out.println("Reached start of undo history");
+							break;
+						}
+
+						if (returnSlot >= 0 && returnSlot < stackPointer)
+							break;
+					}
+				} else {
+					if (undoLog.stepBack()) {
+						Breakpoint breakpoint;
+
+						while ((breakpoint = breakpoints.find()) == null && undoLog.stepBack());
+
+						if (breakpoint == null)
+							System.out.println("Reached start of undo history");
+						else
+							System.out.printf("Breakpoint reached:\n%s\n", breakpoint.toString());
+					} else {
+						System.out.println("Reached start of undo history");
+					}
+				}
+
+				emulatorPreviousOut = emulator.out;
+
+				for (String[] commands : onStopCommands) {
+					executeCommand(commands, null);
+				}
+			} else if (parts[0].equals("trace")) {
+				if (trace != null) {
+					try {
+						trace.close();
+						System.out.printf("Trace closed, %d instructions recorded\n", trace.getCount());
+					} catch (IOException e) {
+						System.err.println("Failed to write trace");
+						e.printStackTrace();
+					}
+
+					trace = null;
+					return false;
+				}
+
+				if (parts.length < 2) {
+					System.err.println("Expected trace file name");
+					return false;
+				}
+
+				boolean registers = parts.length > 2 && parts[2].equals("regs");
+
+				try {
+					trace = new TraceWriter(emulator, new File(parts[1]), registers);
+					System.out.printf("Tracing to %s\n", parts[1]);
+				} catch (IOException e) {
+					System.err.println("Failed to open trace file");
+					e.printStackTrace();
+				}
+			} else if (parts[0].equals("profile")) {
+				if (parts.length > 1 && parts[1].equals("on")) {
+					if (profiler == null)
+						profiler = new Profiler(emulator);
+					else
+						profiler.attach();
+
+					System.out.println("Profiling enabled");
+					return false;
+				}
+
+				if (profiler == null) {
+					System.err.println("Profiling is not enabled");
+					return false;
+				}
+
+				if (parts.length > 1 && parts[1].equals("off")) {
+					profiler.detach();
+					System.out.println("Profiling disabled");
+				} else if (parts.length > 1 && parts[1].equals("reset")) {
+					profiler.reset();
+				} else {
+					int limit = 20;
+					if (parts.length > 1) {
+						try {
+							limit = Integer.parseInt(parts[1]);
+						} catch (NumberFormatException e) {
+							System.err.println("Expected on, off, reset or symbol count");
+							return false;
+						}
+					}
+
+					profiler.print(System.out, symbolIndex, limit);
+				}
+			} else if (parts[0].equals("calls")) {
+				if (parts.length > 1 && parts[1].equals("on")) {
+					if (callStack == null)
+						callStack = new CallStack(emulator);
+					else
+						callStack.attach();
+
+					System.out.println("Call stack tracking enabled");
+					return false;
+				}
+
+				if (callStack == null) {
+					System.err.println("Call stack tracking is not enabled");
+					return false;
+				}
+
+				if (parts.length > 1 && parts[1].equals("off")) {
+					callStack.detach();
+					System.out.println("Call stack tracking disabled");
+				} else if (parts.length > 1 && parts[1].equals("reset")) {
+					callStack.clear();
+				} else {
+					double minimumPercent = 1;
+					if (parts.length > 1) {
+						try {
+							minimumPercent = Double.parseDouble(parts[1]);
+						} catch (NumberFormatException e) {
+							System.err.println("Expected on, off, reset or minimum percentage");
+							return false;
+						}
+					}
+
+					callStack.printCallGraph(System.out, symbolIndex, minimumPercent);
+				}
+			} else if (parts[0].equals("bt")) {
+				if (callStack == null)
+					System.err.println("Call stack tracking is not enabled");
+				else
+					callStack.printBacktrace(System.out);
+			} else if (parts[0].equals("flamegraph")) {
+				if (callStack == null) {
+					System.err.println("Call stack tracking is not enabled");
+					return false;
+				}
+
+				if (parts.length < 2) {
+					System.err.println("Expected file name");
+					return false;
+				}
+
+				try (PrintStream out = new PrintStream(new FileOutputStream(parts[1]))) {
+					callStack.writeCollapsed(out, symbolIndex);
+				} catch (FileNotFoundException e) {
+					System.err.println("Failed to open file");
+					e.printStackTrace();
+				}
+			} else if (parts[0].equals("idle")) {
+				if (idle == null) {
+					idle = new IdleDetector(emulator, 10);
+					System.out.println("Idle detection enabled");
+				} else {
+					System.out.printf("Idle detection disabled, %d cycles skipped, %d parks\n", idle.idleCycles, idle.parks);
+					idle.detach();
+					idle = null;
+				}
+			} else if (parts[0].equals("jit-verify")) {
+				if (jit == null) {
+					System.err.println("JIT is not enabled");
+					return false;
+				}
+
+				jit.verify = !jit.verify;
+				System.out.printf("JIT verification %s, %d blocks compiled, %d mismatches\n",
+						jit.verify ? "enabled" : "disabled", jit.compiledBlocks, jit.mismatches);
 			} else {
 				System.err.println("Unknown command");
 			}
@@ -1080,12 +1497,13 @@ public class Main {
 	public static void main(String[] args) {
 		System.loadLibrary("EPODWin");
 		Native.SetConsoleMode(-11, Native.GetConsoleMode(-11) | 4);
-		symbolPattern = Pattern.compile("^([^:]+)\\s*:\\s*(\\d+)$");
 		keyboardInput = new JFrame("Keyboard");
 		keyboardInput.addKeyListener(new Keyboard(keyPressed));
 		keyboardInput.setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
 
 		emulator.input = Main::getInput;
+		emulator.symbols = symbolIndex;
+		idle = new IdleDetector(emulator, 10);
 
 		runningThread = new Thread(Main::runAsync);
 		runningThread.setDaemon(true);
@@ -1104,6 +1522,15 @@ public class Main {
 		}
 
 		keyboardInput.dispose();
+
+		try {
+			terminal.close();
+
+			if (trace != null)
+				trace.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	private static void print(String[] parts, PrintFormat numberFormat) {
@@ -1126,7 +1553,7 @@ public class Main {
 
 
 			for (int i = Short.toUnsignedInt(emulator.fp); i < Short.toUnsignedInt(emulator.sp); i++) {
-				System.out.printf("%04x: %s\n", i, numberFormat.formatShort(emulator.memory[i]));
+				System.out.printf("%04x: %s\n", i, numberFormat.formatShort(emulator.load(i)));
 			}
 
 		} else if (parts[1].equals("state")) {
@@ -1134,7 +1561,7 @@ public class Main {
 					"tpat: %s fpat: %s out: %s\n" +
 							"zf: %d sf: %d cf: %d of: %d\n",
 					numberFormat.formatShort(emulator.tpat), numberFormat.formatShort(emulator.fpat), numberFormat.formatShort(emulator.out),
-					emulator.zf ? 1 : 0, emulator.sf ? 1 : 0, emulator.cf ? 1 : 0, emulator.of ? 1 : 0);
+					emulator.zf() ? 1 : 0, emulator.sf() ? 1 : 0, emulator.cf() ? 1 : 0, emulator.of() ? 1 : 0);
 		} else if (parts[1].equals("ram")) {
 			int length;
 			int address;
@@ -1179,7 +1606,7 @@ public class Main {
 			}
 
 			for (int i = address; i < address + length; i++) {
-				System.out.printf("%04x: %s\n", i, numberFormat.formatShort(emulator.memory[i]));
+				System.out.printf("%04x: %s\n", i, numberFormat.formatShort(emulator.load(i)));
 			}
 		}
 	}
@@ -1188,6 +1615,32 @@ public class Main {
 		String formatShort(short value);
 	}
 
+	private static class RunCommand {
+		final long sequence;
+		final Breakpoint breakpoint;
+		final boolean running;
+
+		RunCommand(long sequence, Breakpoint breakpoint, boolean running) {
+			this.sequence = sequence;
+			this.breakpoint = breakpoint;
+			this.running = running;
+		}
+	}
+
+	private static class StopState {
+		final long sequence;
+		final StopReason reason;
+		final short ip;
+		final long cycleCount;
+
+		StopState(long sequence, StopReason reason, short ip, long cycleCount) {
+			this.sequence = sequence;
+			this.reason = reason;
+			this.ip = ip;
+			this.cycleCount = cycleCount;
+		}
+	}
+
 	private static class Keyboard extends KeyAdapter {
 		static final short NEWLINE_KEY = 128;
 		static final short BACKSPACE_KEY = 129;
@@ -1273,6 +1726,8 @@ public class Main {
 				synchronized (keyPressed) {
 					keyPressed[0] = key;
 				}
+
+				inputChanged();
 			}
 		}
 
@@ -1281,52 +1736,8 @@ public class Main {
 			synchronized (keyPressed) {
 				keyPressed[0] = 0;
 			}
-		}
-	}
-
-	private static class Breakpoint {
-		private String name;
-		private short value;
-
-		Breakpoint(String name, short value) {
-			this.name = name;
-			this.value = value;
-		}
-
-		@Override
-		public int hashCode() {
-			return Objects.hash(name, value);
-		}
-
-		@Override
-		public String toString() {
-			if (name.equals("ip"))
-				return String.format("ip = %s", getAddressString(value));
-			else if (name.matches("&[0-9A-F]{4}")) {
-				return String.format("&%s = %04x", getAddressString(Integer.parseInt(name.substring(1), 16)), value);
-			} else if (name.equals("on-out")) {
-				return name;
-			}
-
-			return String.format("%s = %04x", name, value);
-		}
-
-		String getName() {
-			return name;
-		}
-
-		short getValue() {
-			return value;
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (obj == null) return false;
-			if (!(obj instanceof Breakpoint)) return false;
-
-			Breakpoint bp = (Breakpoint) obj;
 
-			return name.equals(bp.getName()) && value == bp.getValue();
+			inputChanged();
 		}
 	}
 }
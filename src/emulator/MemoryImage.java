@@ -0,0 +1,23 @@
+package emulator;
+
+public final class MemoryImage {
+
+	final MemoryPage[] pages;
+
+	MemoryImage(MemoryPage[] pages) {
+		this.pages = pages;
+	}
+
+	public static MemoryImage of(short[] memory) {
+		MemoryPage[] pages = new MemoryPage[MemoryPage.COUNT];
+
+		for (int i = 0; i < pages.length; i++)
+			pages[i] = MemoryPage.of(memory, i << MemoryPage.BITS);
+
+		return new MemoryImage(pages);
+	}
+
+	public short get(int address) {
+		return pages[address >>> MemoryPage.BITS].words[address & MemoryPage.MASK];
+	}
+}
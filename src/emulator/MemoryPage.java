@@ -0,0 +1,32 @@
+package emulator;
+
+final class MemoryPage {
+	static final int BITS = 8;
+	static final int SIZE = 1 << BITS;
+	static final int MASK = SIZE - 1;
+	static final int COUNT = 65536 >> BITS;
+
+	static final MemoryPage ZERO = new MemoryPage();
+
+	final short[] words = new short[SIZE];
+	final int[] decoded = new int[SIZE];
+
+	MemoryPage copy() {
+		MemoryPage page = new MemoryPage();
+		System.arraycopy(words, 0, page.words, 0, SIZE);
+		System.arraycopy(decoded, 0, page.decoded, 0, SIZE);
+		return page;
+	}
+
+	static MemoryPage of(short[] memory, int start) {
+		for (int i = 0; i < SIZE; i++) {
+			if (memory[start + i] != 0) {
+				MemoryPage page = new MemoryPage();
+				System.arraycopy(memory, start, page.words, 0, SIZE);
+				return page;
+			}
+		}
+
+		return ZERO;
+	}
+}
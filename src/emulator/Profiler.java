@@ -0,0 +1,98 @@
+package emulator;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+public class Profiler {
+
+	private final Emulator emulator;
+
+	private final long[] instructions = new long[65536];
+	private final long[] cycles = new long[65536];
+
+	public Profiler(Emulator emulator) {
+		this.emulator = emulator;
+		attach();
+	}
+
+	public void attach() {
+		emulator.profiler = this;
+	}
+
+	public void detach() {
+		if (emulator.profiler == this)
+			emulator.profiler = null;
+	}
+
+	void record(short address, long cycleCount, boolean retired) {
+		int index = Short.toUnsignedInt(address);
+
+		cycles[index] += cycleCount;
+		if (retired)
+			instructions[index]++;
+	}
+
+	public void reset() {
+		Arrays.fill(instructions, 0);
+		Arrays.fill(cycles, 0);
+	}
+
+	public long getInstructions(int address) {
+		return instructions[address];
+	}
+
+	public long getCycles(int address) {
+		return cycles[address];
+	}
+
+	ArrayList<Total> fold(SymbolIndex symbols) {
+		ArrayList<Total> totals = new ArrayList<>();
+		Total current = null;
+
+		for (int address = 0; address < 65536; address++) {
+			String name = symbols.get(address);
+
+			if (name != null || current == null) {
+				current = new Total(name == null ? "????" : name, address);
+				totals.add(current);
+			}
+
+			current.instructions += instructions[address];
+			current.cycles += cycles[address];
+		}
+
+		totals.removeIf(total -> total.cycles == 0);
+		totals.sort(Comparator.comparingLong((Total total) -> total.cycles).reversed());
+		return totals;
+	}
+
+	void print(PrintStream out, SymbolIndex symbols, int limit) {
+		ArrayList<Total> totals = fold(symbols);
+
+		long totalCycles = 0;
+		for (Total total : totals)
+			totalCycles += total.cycles;
+
+		out.printf("%12s %7s %12s  %s\n", "self cycles", "%", "instructions", "symbol");
+
+		for (int i = 0; i < Math.min(limit, totals.size()); i++) {
+			Total total = totals.get(i);
+			out.printf("%12d %6.2f%% %12d  %s(%04x)\n", total.cycles, total.cycles * 100.0 / totalCycles,
+					total.instructions, total.name, total.start);
+		}
+	}
+
+	static class Total {
+		final String name;
+		final int start;
+		long instructions;
+		long cycles;
+
+		Total(String name, int start) {
+			this.name = name;
+			this.start = start;
+		}
+	}
+}
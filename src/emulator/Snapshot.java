@@ -0,0 +1,75 @@
+package emulator;
+
+public final class Snapshot {
+
+	private final short a, b, c, d, e, fp, sp, ip;
+	private final short out;
+	private final short flags;
+	private final short tpat, fpat;
+	private final boolean error;
+	private final long instructionsRetired;
+	private final long cycleCount;
+	private final short previousAddress;
+	private final short previousInstructionWord;
+	private final short previousImmediate;
+	private final boolean previousInstructionWasTaken;
+	private final boolean outputTripped;
+	private final MemoryImage memory;
+
+	Snapshot(Emulator emulator) {
+		a = emulator.a;
+		b = emulator.b;
+		c = emulator.c;
+		d = emulator.d;
+		e = emulator.e;
+		fp = emulator.fp;
+		sp = emulator.sp;
+		ip = emulator.ip;
+		out = emulator.out;
+		flags = emulator.getFlags();
+		tpat = emulator.tpat;
+		fpat = emulator.fpat;
+		error = emulator.error;
+		instructionsRetired = emulator.instructionsRetired;
+		cycleCount = emulator.cycleCount;
+		previousAddress = emulator.previousAddress;
+		previousInstructionWord = emulator.previousInstructionWord;
+		previousImmediate = emulator.previousImmediate;
+		previousInstructionWasTaken = emulator.previousInstructionWasTaken;
+		outputTripped = emulator.outputTripped;
+		memory = emulator.shareMemory();
+	}
+
+	void restoreTo(Emulator emulator) {
+		restoreRegistersTo(emulator);
+		emulator.setMemory(memory);
+	}
+
+	void restoreRegistersTo(Emulator emulator) {
+		emulator.a = a;
+		emulator.b = b;
+		emulator.c = c;
+		emulator.d = d;
+		emulator.e = e;
+		emulator.fp = fp;
+		emulator.sp = sp;
+		emulator.ip = ip;
+		emulator.out = out;
+		emulator.setFlags(flags);
+		emulator.tpat = tpat;
+		emulator.fpat = fpat;
+		emulator.error = error;
+		emulator.instructionsRetired = instructionsRetired;
+		emulator.cycleCount = cycleCount;
+		emulator.setPreviousInstruction(previousAddress, previousInstructionWord, previousImmediate, previousInstructionWasTaken);
+		emulator.outputTripped = outputTripped;
+	}
+
+	public long getCycleCount() {
+		return cycleCount;
+	}
+
+	public MemoryImage getMemory() {
+		return memory;
+	}
+}
@@ -0,0 +1,12 @@
+package emulator;
+
+public enum StopReason {
+	CYCLE_BUDGET,
+	OUTPUT,
+	INVALID_INSTRUCTION,
+	BREAKPOINT,
+	INPUT,
+	CANCELLED;
+
+	public final int mask = 1 << ordinal();
+}
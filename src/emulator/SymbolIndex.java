@@ -0,0 +1,42 @@
+package emulator;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+class SymbolIndex {
+
+	private final String[] byAddress = new String[65536];
+	private final TreeMap<Integer, String> sorted = new TreeMap<>();
+
+	void add(String name, int address) {
+		if (sorted.putIfAbsent(address, name) == null && address >= 0 && address < byAddress.length)
+			byAddress[address] = name;
+	}
+
+	void rebuild(Map<String, Integer> symbols) {
+		clear();
+
+		for (Map.Entry<String, Integer> symbol : symbols.entrySet())
+			add(symbol.getKey(), symbol.getValue());
+	}
+
+	void clear() {
+		for (int address : sorted.keySet()) {
+			if (address >= 0 && address < byAddress.length)
+				byAddress[address] = null;
+		}
+
+		sorted.clear();
+	}
+
+	String get(int address) {
+		if (address >= 0 && address < byAddress.length)
+			return byAddress[address];
+
+		return sorted.get(address);
+	}
+
+	Map.Entry<Integer, String> floor(int address) {
+		return sorted.floorEntry(address);
+	}
+}
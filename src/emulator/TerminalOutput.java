@@ -0,0 +1,113 @@
+package emulator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public class TerminalOutput {
+
+	private static final int CAPACITY = 65536;
+	private static final int MASK = CAPACITY - 1;
+
+	private final char[] ring = new char[CAPACITY];
+	private final char[] batch = new char[CAPACITY];
+	private final Charset charset = Charset.defaultCharset();
+	private final Thread writer;
+
+	private volatile long head = 0;
+	private volatile long tail = 0;
+	private volatile long flushIntervalNanos;
+	private volatile FileChannel file = null;
+
+	public TerminalOutput(long flushIntervalMillis) {
+		setFlushInterval(flushIntervalMillis);
+
+		writer = new Thread(this::drainLoop, "Terminal output");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public void setFlushInterval(long flushIntervalMillis) {
+		flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMillis));
+		LockSupport.unpark(writer);
+	}
+
+	public long getFlushInterval() {
+		return TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos);
+	}
+
+	public void setFile(FileChannel channel) throws IOException {
+		flush();
+
+		FileChannel previous = file;
+		file = channel;
+
+		if (previous != null)
+			previous.close();
+	}
+
+	public void write(char c) {
+		long position = tail;
+
+		while (position - head >= CAPACITY) {
+			LockSupport.unpark(writer);
+			Thread.onSpinWait();
+		}
+
+		ring[(int) position & MASK] = c;
+		tail = position + 1;
+	}
+
+	public void flush() {
+		long target = tail;
+
+		while (head < target) {
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(100_000);
+		}
+	}
+
+	public void close() throws IOException {
+		setFile(null);
+	}
+
+	private void drainLoop() {
+		while (true) {
+			LockSupport.parkNanos(flushIntervalNanos);
+			drain();
+		}
+	}
+
+	private void drain() {
+		long start = head;
+		long end = tail;
+		int count = (int) (end - start);
+
+		if (count == 0)
+			return;
+
+		for (int i = 0; i < count; i++)
+			batch[i] = ring[(int) (start + i) & MASK];
+
+		try {
+			FileChannel channel = file;
+
+			if (channel == null) {
+				System.out.print(new String(batch, 0, count));
+				System.out.flush();
+			} else {
+				ByteBuffer bytes = charset.encode(CharBuffer.wrap(batch, 0, count));
+				while (bytes.hasRemaining())
+					channel.write(bytes);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		head = end;
+	}
+}
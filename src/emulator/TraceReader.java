@@ -0,0 +1,223 @@
+package emulator;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class TraceReader implements AutoCloseable {
+
+	private final FileChannel channel;
+	private final boolean registers;
+	private final long count;
+	private final long length;
+	private final short[] values = new short[TraceWriter.REGISTER_COUNT];
+
+	private MappedByteBuffer buffer;
+	private long base;
+	private long index = -1;
+
+	private short address;
+	private short instruction;
+	private short immediate;
+	private boolean taken;
+	private int changed;
+
+	public TraceReader(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+		ByteBuffer header = ByteBuffer.allocate(TraceWriter.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		while (header.hasRemaining() && channel.read(header, header.position()) >= 0);
+
+		if (header.hasRemaining() || header.getInt(0) != TraceWriter.MAGIC) {
+			channel.close();
+			throw new IOException("Not a trace file");
+		}
+
+		if (header.getShort(4) != TraceWriter.VERSION) {
+			channel.close();
+			throw new IOException("Unsupported trace version " + header.getShort(4));
+		}
+
+		registers = (header.getShort(6) & TraceWriter.FLAG_REGISTERS) != 0;
+		count = header.getLong(8);
+		length = header.getLong(16);
+
+		for (int i = 0; i < values.length; i++)
+			values[i] = header.getShort(24 + i * 2);
+
+		map(TraceWriter.HEADER_SIZE);
+	}
+
+	private void map(long offset) throws IOException {
+		base = offset;
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(TraceWriter.CHUNK_SIZE, length - base));
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public boolean next() throws IOException {
+		if (index + 1 >= count)
+			return false;
+
+		if (buffer.remaining() < TraceWriter.MAX_RECORD_SIZE && base + buffer.limit() < length)
+			map(base + buffer.position());
+
+		int position = buffer.position();
+		address = buffer.getShort(position);
+		instruction = buffer.getShort(position + 2);
+		immediate = buffer.getShort(position + 4);
+
+		int bits = buffer.getShort(position + 6);
+		taken = (bits & 1) != 0;
+		changed = bits >>> 1 & (1 << TraceWriter.REGISTER_COUNT) - 1;
+
+		position += TraceWriter.RECORD_SIZE;
+		for (int i = 0; i < values.length; i++) {
+			if ((changed & 1 << i) != 0) {
+				values[i] = buffer.getShort(position);
+				position += 2;
+			}
+		}
+
+		buffer.position(position);
+		index++;
+		return true;
+	}
+
+	public long skip(long records) throws IOException {
+		long skipped = 0;
+		while (skipped < records && next())
+			skipped++;
+
+		return skipped;
+	}
+
+	public long getIndex() {
+		return index;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public boolean hasRegisters() {
+		return registers;
+	}
+
+	public short getAddress() {
+		return address;
+	}
+
+	public short getInstructionWord() {
+		return instruction;
+	}
+
+	public short getImmediate() {
+		return immediate;
+	}
+
+	public boolean isTaken() {
+		return taken;
+	}
+
+	public Instruction getInstruction() {
+		Instruction result = new Instruction(address);
+		result.instruction = instruction;
+		result.immediate = immediate;
+		return result;
+	}
+
+	public boolean registerChanged(int register) {
+		return (changed & 1 << register) != 0;
+	}
+
+	public short getRegister(int register) {
+		return values[register];
+	}
+
+	@Override
+	public void close() throws IOException {
+		buffer = null;
+		channel.close();
+	}
+
+	private static void usage() {
+		System.err.println("Usage: TraceReader <trace> [-from n] [-count n] [-address start[..end]] [-opcode n]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1)
+			usage();
+
+		long from = 0;
+		long limit = Long.MAX_VALUE;
+		int start = 0;
+		int end = 0xFFFF;
+		int opcode = -1;
+
+		try {
+			for (int i = 1; i < args.length; i++) {
+				if (i + 1 >= args.length) {
+					usage();
+				} else if (args[i].equals("-from")) {
+					from = Long.parseLong(args[++i]);
+				} else if (args[i].equals("-count")) {
+					limit = Long.parseLong(args[++i]);
+				} else if (args[i].equals("-address")) {
+					String[] range = args[++i].split("\\.\\.");
+					start = Integer.parseUnsignedInt(range[0], 16);
+					end = range.length > 1 ? Integer.parseUnsignedInt(range[1], 16) : start;
+				} else if (args[i].equals("-opcode")) {
+					opcode = Integer.parseUnsignedInt(args[++i], 16);
+				} else {
+					usage();
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Expected number");
+			System.exit(2);
+		}
+
+		PrintStream output = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 65536), false);
+
+		try (TraceReader reader = new TraceReader(new File(args[0]))) {
+			reader.skip(from);
+
+			long printed = 0;
+			while (printed < limit && reader.next()) {
+				int address = Short.toUnsignedInt(reader.getAddress());
+
+				if (address < start || address > end)
+					continue;
+				if (opcode >= 0 && Instruction.getOpcode(reader.getInstructionWord()) != opcode)
+					continue;
+
+				output.printf("%d %04x: %s", reader.getIndex(), address, reader.getInstruction());
+
+				if (Instruction.getCondition(reader.getInstructionWord()) != 0 && !reader.isTaken())
+					output.print(" (not taken)");
+
+				for (int i = 0; i < TraceWriter.REGISTER_COUNT; i++) {
+					if (reader.registerChanged(i))
+						output.printf(" %s=%04x", TraceWriter.REGISTER_NAMES[i], reader.getRegister(i));
+				}
+
+				output.println();
+				printed++;
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to read trace: " + e.getMessage());
+			System.exit(2);
+		} finally {
+			output.flush();
+		}
+	}
+}
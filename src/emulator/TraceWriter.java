@@ -0,0 +1,168 @@
+package emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class TraceWriter implements AutoCloseable {
+
+	static final int MAGIC = 0x52545141;
+	static final int VERSION = 1;
+	static final int FLAG_REGISTERS = 1;
+	static final int HEADER_SIZE = 48;
+	static final int RECORD_SIZE = 8;
+	static final int REGISTER_COUNT = 9;
+	static final int MAX_RECORD_SIZE = RECORD_SIZE + REGISTER_COUNT * 2;
+	static final long CHUNK_SIZE = 16 << 20;
+	static final String[] REGISTER_NAMES = {"a", "b", "c", "d", "e", "fp", "sp", "out", "flags"};
+
+	private final Emulator emulator;
+	private final FileChannel channel;
+	private final boolean registers;
+	private final short[] values = new short[REGISTER_COUNT];
+
+	private MappedByteBuffer buffer;
+	private long base;
+	private long count = 0;
+	private boolean unmapped = true;
+
+	public TraceWriter(Emulator emulator, File file, boolean registers) throws IOException {
+		this.emulator = emulator;
+		this.registers = registers;
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		map(0);
+
+		buffer.putInt(0, MAGIC);
+		buffer.putShort(4, (short) VERSION);
+		buffer.putShort(6, (short) (registers ? FLAG_REGISTERS : 0));
+
+		for (int i = 0; i < REGISTER_COUNT; i++) {
+			values[i] = readRegister(emulator, i);
+			buffer.putShort(24 + i * 2, values[i]);
+		}
+
+		buffer.position(HEADER_SIZE);
+
+		emulator.trace = this;
+	}
+
+	private void map(long offset) throws IOException {
+		if (buffer != null)
+			unmapped &= unmap(buffer);
+
+		base = offset;
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, base, CHUNK_SIZE);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	static short readRegister(Emulator emulator, int register) {
+		switch (register) {
+			case 0:
+				return emulator.a;
+			case 1:
+				return emulator.b;
+			case 2:
+				return emulator.c;
+			case 3:
+				return emulator.d;
+			case 4:
+				return emulator.e;
+			case 5:
+				return emulator.fp;
+			case 6:
+				return emulator.sp;
+			case 7:
+				return emulator.out;
+		}
+
+		return emulator.getFlags();
+	}
+
+	void retired() {
+		if (buffer.remaining() < MAX_RECORD_SIZE) {
+			try {
+				map(base + buffer.position());
+			} catch (IOException e) {
+				e.printStackTrace();
+				detach();
+				return;
+			}
+		}
+
+		int position = buffer.position();
+		int changed = 0;
+
+		if (registers) {
+			int write = position + RECORD_SIZE;
+
+			for (int i = 0; i < REGISTER_COUNT; i++) {
+				short value = readRegister(emulator, i);
+
+				if (value != values[i]) {
+					values[i] = value;
+					changed |= 1 << i;
+					buffer.putShort(write, value);
+					write += 2;
+				}
+			}
+		}
+
+		buffer.putShort(position, emulator.previousAddress);
+		buffer.putShort(position + 2, emulator.previousInstructionWord);
+		buffer.putShort(position + 4, emulator.previousImmediate);
+		buffer.putShort(position + 6, (short) (changed << 1 | (emulator.previousInstructionWasTaken ? 1 : 0)));
+		buffer.position(position + RECORD_SIZE + Integer.bitCount(changed) * 2);
+
+		count++;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public void detach() {
+		if (emulator.trace == this)
+			emulator.trace = null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		detach();
+
+		try {
+			long length = base + buffer.position();
+			buffer.force();
+			unmapped &= unmap(buffer);
+			buffer = null;
+
+			ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+			header.putLong(0, count);
+			header.putLong(8, length);
+			channel.write(header, 8);
+
+			if (unmapped)
+				channel.truncate(length);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static boolean unmap(MappedByteBuffer buffer) {
+		try {
+			Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			unsafe.getClass().getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe, buffer);
+			return true;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,336 @@
+package emulator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+public class UndoLog {
+
+	private static final int REGISTER_COUNT = 16;
+	private static final int MAX_WRITES = 16;
+	private static final int FOOTER_SIZE = 5;
+
+	private final Emulator emulator;
+	private final ByteBuffer ring;
+	private final long mask;
+	private final int keyframeInterval;
+
+	private long head = 0;
+	private long tail = 0;
+	private long newestIndex = 0;
+	private long oldestIndex = 0;
+
+	private final ArrayDeque<Keyframe> keyframes = new ArrayDeque<>();
+
+	private final short[] before = new short[REGISTER_COUNT];
+	private final int[] writes = new int[MAX_WRITES * 2];
+	private int writeCount;
+	private long cyclesBefore;
+	private long retiredBefore;
+	private boolean recording;
+	private boolean overflowed;
+
+	public UndoLog(Emulator emulator, int capacityBytes, int keyframeInterval) {
+		this.emulator = emulator;
+		this.keyframeInterval = keyframeInterval;
+
+		int capacity = Integer.highestOneBit(Math.max(capacityBytes, 4096));
+		ring = ByteBuffer.allocateDirect(capacity);
+		mask = capacity - 1;
+
+		emulator.undoLog = this;
+	}
+
+	public void detach() {
+		if (emulator.undoLog == this)
+			emulator.undoLog = null;
+	}
+
+	public void clear() {
+		head = 0;
+		tail = 0;
+		newestIndex = 0;
+		oldestIndex = 0;
+		keyframes.clear();
+	}
+
+	public long size() {
+		return newestIndex - oldestIndex;
+	}
+
+	void begin() {
+		for (int i = 0; i < REGISTER_COUNT; i++)
+			before[i] = read(i);
+
+		cyclesBefore = emulator.cycleCount;
+		retiredBefore = emulator.instructionsRetired;
+		writeCount = 0;
+		overflowed = false;
+		recording = true;
+	}
+
+	void stored(int address, short old) {
+		if (!recording)
+			return;
+
+		if (writeCount == MAX_WRITES) {
+			overflowed = true;
+			return;
+		}
+
+		writes[writeCount * 2] = address;
+		writes[writeCount * 2 + 1] = old;
+		writeCount++;
+	}
+
+	void end() {
+		recording = false;
+
+		if (overflowed) {
+			clear();
+			return;
+		}
+
+		int changed = 0;
+		int registers = 0;
+		for (int i = 0; i < REGISTER_COUNT; i++) {
+			if (read(i) != before[i]) {
+				changed |= 1 << i;
+				registers++;
+			}
+		}
+
+		int length = writeCount * 4 + registers * 2 + FOOTER_SIZE;
+
+		while (head + length + 4 - tail > ring.capacity()) {
+			tail += getShort(tail) + 4;
+			oldestIndex++;
+		}
+
+		while (!keyframes.isEmpty() && keyframes.peekFirst().index < oldestIndex)
+			keyframes.removeFirst();
+
+		long position = head;
+		putShort(position, length);
+		position += 2;
+
+		for (int i = 0; i < writeCount; i++) {
+			putShort(position, writes[i * 2]);
+			putShort(position + 2, writes[i * 2 + 1]);
+			position += 4;
+		}
+
+		for (int i = 0; i < REGISTER_COUNT; i++) {
+			if ((changed & 1 << i) != 0) {
+				putShort(position, before[i]);
+				position += 2;
+			}
+		}
+
+		putShort(position, changed);
+		putByte(position + 2, (int) (emulator.cycleCount - cyclesBefore));
+		putByte(position + 3, (int) (emulator.instructionsRetired - retiredBefore));
+		putByte(position + 4, writeCount);
+		position += FOOTER_SIZE;
+
+		putShort(position, length);
+		head = position + 2;
+		newestIndex++;
+
+		if (newestIndex % keyframeInterval == 0)
+			keyframes.addLast(new Keyframe(newestIndex, head, emulator.snapshot()));
+	}
+
+	public boolean stepBack() {
+		if (newestIndex == oldestIndex)
+			return false;
+
+		if (emulator.callStack != null)
+			emulator.callStack.steppedBack();
+
+		int length = getShort(head - 2);
+		long start = head - 2 - length;
+		long footer = start + length - FOOTER_SIZE;
+
+		int changed = getShort(footer);
+		int cycles = getByte(footer + 2);
+		int retired = getByte(footer + 3);
+		int count = getByte(footer + 4);
+
+		long position = footer;
+		for (int i = REGISTER_COUNT - 1; i >= 0; i--) {
+			if ((changed & 1 << i) != 0) {
+				position -= 2;
+				write(i, (short) getShort(position));
+			}
+		}
+
+		for (int i = count - 1; i >= 0; i--) {
+			long write = start + i * 4;
+			emulator.restoreWord(getShort(write), (short) getShort(write + 2));
+		}
+
+		emulator.setPreviousInstruction(emulator.previousAddress, emulator.previousInstructionWord,
+				emulator.previousImmediate, emulator.previousInstructionWasTaken);
+		emulator.cycleCount -= cycles;
+		emulator.instructionsRetired -= retired;
+
+		head = start - 2;
+		newestIndex--;
+
+		while (!keyframes.isEmpty() && keyframes.peekLast().index > newestIndex)
+			keyframes.removeLast();
+
+		return true;
+	}
+
+	public long stepBack(long count) {
+		long target = Math.max(oldestIndex, newestIndex - count);
+		long start = newestIndex;
+
+		Keyframe nearest = null;
+		for (Iterator<Keyframe> iterator = keyframes.descendingIterator(); iterator.hasNext(); ) {
+			Keyframe keyframe = iterator.next();
+			if (keyframe.index < target)
+				break;
+
+			nearest = keyframe;
+		}
+
+		if (nearest != null && nearest.index < newestIndex) {
+			emulator.restore(nearest.snapshot);
+			if (emulator.callStack != null)
+				emulator.callStack.reset();
+			head = nearest.position;
+			newestIndex = nearest.index;
+
+			while (!keyframes.isEmpty() && keyframes.peekLast().index > newestIndex)
+				keyframes.removeLast();
+		}
+
+		while (newestIndex > target)
+			stepBack();
+
+		return start - newestIndex;
+	}
+
+	private short read(int register) {
+		switch (register) {
+			case 0:
+				return emulator.a;
+			case 1:
+				return emulator.b;
+			case 2:
+				return emulator.c;
+			case 3:
+				return emulator.d;
+			case 4:
+				return emulator.e;
+			case 5:
+				return emulator.fp;
+			case 6:
+				return emulator.sp;
+			case 7:
+				return emulator.ip;
+			case 8:
+				return emulator.out;
+			case 9:
+				return emulator.getFlags();
+			case 10:
+				return emulator.tpat;
+			case 11:
+				return emulator.fpat;
+			case 12:
+				return emulator.previousAddress;
+			case 13:
+				return emulator.previousInstructionWord;
+			case 14:
+				return emulator.previousImmediate;
+		}
+
+		return (short) ((emulator.previousInstructionWasTaken ? 1 : 0) | (emulator.outputTripped ? 2 : 0) | (emulator.error ? 4 : 0));
+	}
+
+	private void write(int register, short value) {
+		switch (register) {
+			case 0:
+				emulator.a = value;
+				break;
+			case 1:
+				emulator.b = value;
+				break;
+			case 2:
+				emulator.c = value;
+				break;
+			case 3:
+				emulator.d = value;
+				break;
+			case 4:
+				emulator.e = value;
+				break;
+			case 5:
+				emulator.fp = value;
+				break;
+			case 6:
+				emulator.sp = value;
+				break;
+			case 7:
+				emulator.ip = value;
+				break;
+			case 8:
+				emulator.out = value;
+				break;
+			case 9:
+				emulator.setFlags(value);
+				break;
+			case 10:
+				emulator.tpat = value;
+				break;
+			case 11:
+				emulator.fpat = value;
+				break;
+			case 12:
+				emulator.previousAddress = value;
+				break;
+			case 13:
+				emulator.previousInstructionWord = value;
+				break;
+			case 14:
+				emulator.previousImmediate = value;
+				break;
+			default:
+				emulator.previousInstructionWasTaken = (value & 1) != 0;
+				emulator.outputTripped = (value & 2) != 0;
+				emulator.error = (value & 4) != 0;
+		}
+	}
+
+	private void putByte(long position, int value) {
+		ring.put((int) (position & mask), (byte) value);
+	}
+
+	private void putShort(long position, int value) {
+		putByte(position, value);
+		putByte(position + 1, value >>> 8);
+	}
+
+	private int getByte(long position) {
+		return ring.get((int) (position & mask)) & 0xFF;
+	}
+
+	private int getShort(long position) {
+		return getByte(position) | getByte(position + 1) << 8;
+	}
+
+	private static class Keyframe {
+		private final long index;
+		private final long position;
+		private final Snapshot snapshot;
+
+		Keyframe(long index, long position, Snapshot snapshot) {
+			this.index = index;
+			this.position = position;
+			this.snapshot = snapshot;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package emulator;
+
+class Watchpoint {
+	static final int READ = 1;
+	static final int WRITE = 2;
+	static final int CHANGE = 4;
+
+	private final int start;
+	private final int end;
+	private final int type;
+
+	Watchpoint(int start, int end, int type) {
+		this.start = start;
+		this.end = end;
+		this.type = type;
+	}
+
+	static int parseType(String name) {
+		int type = 0;
+
+		for (char c : name.toCharArray()) {
+			if (c == 'r')
+				type |= READ;
+			else if (c == 'w')
+				type |= WRITE;
+			else if (c == 'c')
+				type |= CHANGE;
+			else
+				return -1;
+		}
+
+		return type;
+	}
+
+	boolean covers(int address) {
+		return address >= start && address <= end;
+	}
+
+	int getStart() {
+		return start;
+	}
+
+	int getEnd() {
+		return end;
+	}
+
+	int getType() {
+		return type;
+	}
+
+	@Override
+	public String toString() {
+		String types = ((type & READ) != 0 ? "r" : "") + ((type & WRITE) != 0 ? "w" : "") + ((type & CHANGE) != 0 ? "c" : "");
+
+		if (start == end)
+			return String.format("%s &%s", types, Main.getAddressString(start));
+
+		return String.format("%s &%s..&%s", types, Main.getAddressString(start), Main.getAddressString(end));
+	}
+}